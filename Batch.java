@@ -0,0 +1,108 @@
+/*
+ * Batch.java
+ */
+
+// Compiles many files in one JVM:
+//
+//   java VC.vc -b[n] [-options] files
+//
+// The files (and the .vc files in the directories given, in the order
+// of their names) are compiled on a pool of n threads with the same
+// options. Every compilation has its own ErrorReporter, Scanner,
+// Parser, Checker and Emitter (see vc.compile), and what it prints is
+// collected in a buffer of its own. The outputs are printed in the
+// order of the files, as if they had been compiled one after another.
+
+package VC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+final class Batch {
+
+  private Batch() {
+  }
+
+  // Compiles the files given by names with the options on
+  // options.batchThreads threads and returns true if all of them have
+  // been compiled successfully.
+
+  static boolean compile(String[] names, final Options options) {
+    ArrayList<String> files = new ArrayList<String>();
+    for (String name : names) {
+      File f = new File(name);
+      if (f.isDirectory()) {
+        String[] vcFiles = f.list();
+        Arrays.sort(vcFiles);
+        for (String vcFile : vcFiles)
+          if (vcFile.endsWith(".vc") && new File(f, vcFile).isFile())
+            files.add(new File(f, vcFile).getPath());
+      } else
+        files.add(name);
+    }
+
+    final PrintStream console = System.out;
+    final ThreadOutput output = new ThreadOutput(console);
+    System.setOut(new PrintStream(output, true));
+
+    ExecutorService pool = Executors.newFixedThreadPool(options.batchThreads);
+    ArrayList<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    final boolean[] ok = new boolean[files.size()];
+    for (int k = 0; k < files.size(); k++) {
+      final int i = k;
+      final String file = files.get(k);
+      results.add(pool.submit(new Callable<byte[]>() {
+        public byte[] call() {
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          output.set(buffer);
+          try {
+            if (! new File(file).canRead())
+              System.out.println("[# vc #]: can't read: " + file);
+            else
+              ok[i] = vc.compile(file, options);
+          } catch (RuntimeException e) {
+            System.out.println("[# vc #]: " + e);
+          } finally {
+            System.out.flush();
+            output.set(null);
+          }
+          return buffer.toByteArray();
+        }
+      }));
+    }
+
+    int failed = 0;
+    try {
+      for (int k = 0; k < files.size(); k++) {
+        byte[] result = results.get(k).get();
+        console.println("[# vc #]: " + files.get(k));
+        console.write(result, 0, result.length);
+        console.println();
+        if (! ok[k])
+          failed++;
+      }
+    } catch (InterruptedException e) {
+      console.println("[# vc #]: " + e);
+      failed++;
+    } catch (ExecutionException e) {
+      console.println("[# vc #]: " + e.getCause());
+      failed++;
+    } finally {
+      pool.shutdown();
+      System.setOut(console);
+    }
+
+    console.println("[# vc #]: " + (files.size() - failed) + " of " + files.size()
+                    + " files compiled successfully");
+    return failed == 0;
+  }
+
+}
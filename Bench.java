@@ -0,0 +1,557 @@
+/*
+ * Bench.java
+ */
+
+// A benchmark of the passes of the compiler, to tell how fast they are
+// and how much they allocate, and whether a change has made them
+// slower:
+//
+//   java VC.Bench [-warmup=s] [-iterations=n] [-time=s] [-sizes=n,...]
+//                 [-passes=pass,...] [-json] [files or directories]
+//
+// The passes are
+//
+//   scan         Scanner.getToken up to the end of the file
+//   parse        Parser.parseProgram (which scans the file as it goes)
+//   check        Checker.check on an AST from the parser
+//   generate     Emitter.gen on a checked AST (with the class file kept
+//                in memory)
+//   generate-O   Emitter.gen with the options of -O
+//   print        the Printer on an AST from the parser
+//   unparse      the UnParser on an AST from the parser
+//
+// The inputs are the files given, with the .vc files of a directory as
+// one input (Recogniser and CodeGen by default), and synthetic programs
+// of n functions (10, 100 and 1000 by default). One operation runs a
+// pass on every file of an input that gets through the passes before
+// it without errors. What a pass needs (a new AST from the parser for
+// check and print, a new checked AST for generate) is made before each
+// file and is not measured.
+//
+// Every pass is run on every input for the time of the warm-up (2
+// seconds by default) and then for a number of iterations (5) of a
+// given time (1 second). As with JMH, the report has the operations per
+// second (the mean of the iterations and the half-width of its 99.9%
+// confidence interval), the bytes allocated per operation and per token
+// (see ThreadMXBean) and the rate of allocation. With -json, every
+// result is printed as one line of JSON, to be compared between builds.
+
+package VC;
+
+import VC.Scanner.Scanner;
+import VC.Scanner.SourceFile;
+import VC.Scanner.SourcePosition;
+import VC.Scanner.Token;
+import VC.Parser.Parser;
+import VC.ASTs.AST;
+import VC.Checker.Checker;
+import VC.CodeGen.CodeGenException;
+import VC.CodeGen.Emitter;
+import VC.CodeGen.Peephole;
+import VC.TreePrinter.Printer;
+import VC.UnParser.UnParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public final class Bench {
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  // How far a file gets through the compiler
+  private static final int SCANNED = 0;
+  private static final int PARSED = 1;
+  private static final int CHECKED = 2;
+  private static final int GENERATED = 3;
+  private static final int OPTIMISED = 4;
+
+  // the quantiles of Student's t-distribution for a 99.9% confidence
+  // interval with 1 to 30 degrees of freedom (and 3.29 beyond)
+  private static final double[] T999 = {
+    636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+    4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+    3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65
+  };
+
+  // the results of the passes, so that they are not optimised away
+  private static Object sink;
+
+  private static double warmup = 2;
+  private static int iterations = 5;
+  private static double time = 1;
+  private static boolean json = false;
+
+  private static File scratch;
+
+  private Bench() {
+  }
+
+  // A pass of the compiler. prepare makes what run needs for a file
+  // (and is not measured), run is the pass itself.
+
+  private abstract static class Pass {
+    final String name;
+    final int needs;
+
+    Pass(String name, int needs) {
+      this.name = name;
+      this.needs = needs;
+    }
+
+    Object prepare(String file) {
+      return null;
+    }
+
+    abstract Object run(String file, Object prepared);
+  }
+
+  // An input: its files and how far each of them gets
+
+  private static final class Input {
+    final String name;
+    final ArrayList<String> files = new ArrayList<String>();
+    final ArrayList<Integer> reached = new ArrayList<Integer>();
+    final ArrayList<Integer> tokens = new ArrayList<Integer>();
+
+    Input(String name) {
+      this.name = name;
+    }
+  }
+
+  private static void usage() {
+    System.out.println("\nUsage: java VC.Bench [-options] [files or directories]");
+    System.out.println();
+    System.out.println("where options include:");
+    System.out.println("	-warmup=s           warm up every pass on every input for s seconds");
+    System.out.println("	                    (2 by default)");
+    System.out.println("	-iterations=n       measure n iterations (5 by default)");
+    System.out.println("	-time=s             of s seconds (1 by default)");
+    System.out.println("	-sizes=n,...        add synthetic programs of n functions");
+    System.out.println("	                    (10,100,1000 by default)");
+    System.out.println("	-passes=pass,...    run only the given passes of scan, parse,");
+    System.out.println("	                    check, generate, generate-O, print, unparse");
+    System.out.println("	-json               print every result as a line of JSON");
+    System.out.println("and the files or directories are Recogniser and CodeGen by default");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) {
+    String sizes = "10,100,1000";
+    String passNames = null;
+    int i = 0;
+
+    try {
+      for (; i < args.length && args[i].startsWith("-"); i++) {
+        String arg = args[i];
+        if (arg.startsWith("-warmup="))
+          warmup = seconds(arg, 0);
+        else if (arg.startsWith("-iterations=")) {
+          iterations = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+          if (iterations < 1)
+            throw new NumberFormatException();
+        } else if (arg.startsWith("-time="))
+          time = seconds(arg, 0.001);
+        else if (arg.startsWith("-sizes="))
+          sizes = arg.substring(arg.indexOf('=') + 1);
+        else if (arg.startsWith("-passes="))
+          passNames = arg.substring(arg.indexOf('=') + 1);
+        else if (arg.equals("-json"))
+          json = true;
+        else {
+          System.out.println("[# vc #]: invalid option " + arg);
+          usage();
+        }
+      }
+    } catch (NumberFormatException e) {
+      System.out.println("[# vc #]: invalid option " + args[i]);
+      usage();
+    }
+
+    Pass[] passes = passes(passNames);
+    if (passes == null)
+      usage();
+
+    ArrayList<Input> inputs = new ArrayList<Input>();
+    String[] names = i < args.length ? Arrays.copyOfRange(args, i, args.length)
+                                     : new String[] { "Recogniser", "CodeGen" };
+    for (String name : names) {
+      Input input = input(name);
+      if (input == null) {
+        System.out.println("[# vc #]: can't read: " + name);
+        System.exit(1);
+      }
+      inputs.add(input);
+    }
+    try {
+      if (! sizes.equals(""))
+        for (String size : sizes.split(",")) {
+          int n = Integer.parseInt(size);
+          if (n < 1)
+            throw new NumberFormatException();
+          inputs.add(synthetic(n));
+        }
+    } catch (NumberFormatException e) {
+      System.out.println("[# vc #]: invalid option -sizes=" + sizes);
+      usage();
+    } catch (IOException e) {
+      System.out.println("[# vc #]: can't write a synthetic program: " + e);
+      System.exit(1);
+    }
+
+    try {
+      for (Input input : inputs)
+        survey(input);
+
+      if (! json) {
+        System.out.println(String.format("%-11s %-16s %5s %8s %14s %12s %12s %9s %9s",
+                                         "pass", "input", "files", "tokens", "ops/s", "error",
+                                         "B/op", "B/token", "MB/s"));
+      }
+      for (Pass pass : passes)
+        for (Input input : inputs)
+          bench(pass, input);
+    } finally {
+      if (scratch != null)
+        delete(scratch);
+    }
+  }
+
+  private static double seconds(String arg, double least) {
+    double s = Double.parseDouble(arg.substring(arg.indexOf('=') + 1));
+    if (! (s >= least))
+      throw new NumberFormatException();
+    return s;
+  }
+
+  // The passes named in names (all of them if names is null), or null
+  // if a name is not that of a pass
+
+  private static Pass[] passes(String names) {
+    Pass[] all = {
+      new Pass("scan", SCANNED) {
+        Object run(String file, Object prepared) {
+          Scanner scanner = new Scanner(new SourceFile(file), quiet());
+          int tokens = 0;
+          while (scanner.getToken().kind != Token.EOF)
+            tokens++;
+          return tokens;
+        }
+      },
+      new Pass("parse", PARSED) {
+        Object run(String file, Object prepared) {
+          return parse(file, quiet());
+        }
+      },
+      new Pass("check", CHECKED) {
+        Object prepare(String file) {
+          return parse(file, quiet());
+        }
+        Object run(String file, Object prepared) {
+          new Checker(quiet()).check((AST) prepared);
+          return prepared;
+        }
+      },
+      new Pass("generate", GENERATED) {
+        Object prepare(String file) {
+          return check(file, quiet());
+        }
+        Object run(String file, Object prepared) {
+          return generate(file, (AST) prepared, false, quiet());
+        }
+      },
+      new Pass("generate-O", OPTIMISED) {
+        Object prepare(String file) {
+          return check(file, quiet());
+        }
+        Object run(String file, Object prepared) {
+          return generate(file, (AST) prepared, true, quiet());
+        }
+      },
+      new Pass("print", PARSED) {
+        Object prepare(String file) {
+          return parse(file, quiet());
+        }
+        Object run(String file, Object prepared) {
+          new Printer(new File(scratch(), "bench.vcp").getPath()).print((AST) prepared);
+          return prepared;
+        }
+      },
+      new Pass("unparse", PARSED) {
+        Object prepare(String file) {
+          return parse(file, quiet());
+        }
+        Object run(String file, Object prepared) {
+          new UnParser(new File(scratch(), "bench.vcu").getPath()).unparse((AST) prepared);
+          return prepared;
+        }
+      }
+    };
+    if (names == null)
+      return all;
+
+    ArrayList<Pass> passes = new ArrayList<Pass>();
+    for (String name : names.split(",")) {
+      Pass found = null;
+      for (Pass pass : all)
+        if (pass.name.equals(name))
+          found = pass;
+      if (found == null) {
+        System.out.println("[# vc #]: invalid pass " + name);
+        return null;
+      }
+      passes.add(found);
+    }
+    return passes.toArray(new Pass[0]);
+  }
+
+  // An ErrorReporter that prints nothing
+
+  private static ErrorReporter quiet() {
+    return new ErrorReporter() {
+      public void reportError(String message, String tokenName, SourcePosition pos) {
+        numErrors++;
+      }
+
+      public void reportRestriction(String message) {
+      }
+    };
+  }
+
+  private static AST parse(String file, ErrorReporter reporter) {
+    Parser parser = new Parser(new Scanner(new SourceFile(file), reporter), reporter);
+    return parser.parseProgram();
+  }
+
+  private static AST check(String file, ErrorReporter reporter) {
+    AST ast = parse(file, reporter);
+    new Checker(reporter).check(ast);
+    return ast;
+  }
+
+  private static byte[] generate(String file, AST ast, boolean optimising, ErrorReporter reporter) {
+    Emitter emitter = new Emitter(file, reporter);
+    if (optimising) {
+      emitter.setOptimising(true);
+      emitter.setPeephole(new Peephole());
+      emitter.setRotatingLoops(true);
+      emitter.setStaticMethods(true);
+    }
+    emitter.setKeepingClassFile(true);
+    emitter.gen(ast);
+    return emitter.getClassFile();
+  }
+
+  // The input of a file, or of the .vc files in a directory (in the
+  // order of their names), or null if there is no such file
+
+  private static Input input(String name) {
+    File f = new File(name);
+    Input input = new Input(f.getName());
+    if (f.isDirectory()) {
+      String[] vcFiles = f.list();
+      Arrays.sort(vcFiles);
+      for (String vcFile : vcFiles)
+        if (vcFile.endsWith(".vc") && new File(f, vcFile).isFile())
+          input.files.add(new File(f, vcFile).getPath());
+    } else if (f.isFile())
+      input.files.add(name);
+    else
+      return null;
+    return input;
+  }
+
+  // Finds how far every file of the input gets through the compiler
+  // and counts its tokens
+
+  private static void survey(Input input) {
+    for (String file : input.files) {
+      int reached = SCANNED;
+      try {
+        ErrorReporter reporter = quiet();
+        AST ast = parse(file, reporter);
+        if (reporter.numErrors == 0) {
+          reached = PARSED;
+          new Checker(reporter).check(ast);
+          if (reporter.numErrors == 0) {
+            reached = CHECKED;
+            generate(file, ast, false, reporter);
+            if (reporter.numErrors == 0) {
+              reached = GENERATED;
+              generate(file, check(file, reporter), true, reporter);
+              if (reporter.numErrors == 0)
+                reached = OPTIMISED;
+            }
+          }
+        }
+      } catch (CodeGenException e) {
+      } catch (RuntimeException e) {
+      } catch (StackOverflowError e) {
+      }
+      input.reached.add(reached);
+      input.tokens.add(Stats.countTokens(file));
+    }
+  }
+
+  // Warms up the pass on the input, measures it and prints the result
+
+  private static void bench(Pass pass, Input input) {
+    int files = 0, tokens = 0;
+    for (int k = 0; k < input.files.size(); k++)
+      if (input.reached.get(k) >= pass.needs) {
+        files++;
+        tokens += input.tokens.get(k);
+      }
+    if (files == 0)
+      return;
+
+    iteration(pass, input, warmup);
+    double[] opsPerSecond = new double[iterations];
+    long ops = 0, nanos = 0, bytes = 0;
+    for (int k = 0; k < iterations; k++) {
+      long[] result = iteration(pass, input, time);
+      opsPerSecond[k] = result[0] / (result[1] / 1e9);
+      ops += result[0];
+      nanos += result[1];
+      bytes = bytes < 0 || result[2] < 0 ? -1 : bytes + result[2];
+    }
+
+    double mean = 0;
+    for (double x : opsPerSecond)
+      mean += x;
+    mean /= iterations;
+    double error = Double.NaN;
+    if (iterations > 1) {
+      double variance = 0;
+      for (double x : opsPerSecond)
+        variance += (x - mean) * (x - mean);
+      variance /= iterations - 1;
+      error = (iterations - 1 <= T999.length ? T999[iterations - 2] : 3.29)
+              * Math.sqrt(variance / iterations);
+    }
+    double bytesPerOp = bytes < 0 ? -1 : (double) bytes / ops;
+    double rate = bytes < 0 ? -1 : bytes / (nanos / 1e9) / (1024 * 1024);
+
+    if (json) {
+      System.out.println("{\"pass\":" + Stats.quote(pass.name) + ",\"input\":" + Stats.quote(input.name)
+                         + ",\"files\":" + files + ",\"tokens\":" + tokens
+                         + ",\"opsPerSecond\":" + mean
+                         + ",\"error\":" + (Double.isNaN(error) ? "null" : Double.toString(error))
+                         + ",\"bytesPerOp\":" + bytesPerOp
+                         + ",\"bytesPerToken\":" + (bytes < 0 ? -1 : bytesPerOp / tokens)
+                         + ",\"allocationRateMB\":" + rate + "}");
+    } else {
+      System.out.println(String.format("%-11s %-16s %5d %8d %14.3f %12s %12s %9s %9s",
+                                       pass.name, input.name, files, tokens, mean,
+                                       Double.isNaN(error) ? "-" : String.format("+- %.3f", error),
+                                       bytes < 0 ? "-" : String.format("%.0f", bytesPerOp),
+                                       bytes < 0 ? "-" : String.format("%.1f", bytesPerOp / tokens),
+                                       bytes < 0 ? "-" : String.format("%.1f", rate)));
+    }
+  }
+
+  // Runs the pass on the input for the given number of seconds and
+  // returns the operations, the nanoseconds and the bytes allocated
+  // (or -1 if allocation cannot be measured) in the pass itself
+
+  private static long[] iteration(Pass pass, Input input, double seconds) {
+    long end = System.nanoTime() + (long) (seconds * 1e9);
+    long ops = 0, nanos = 0, bytes = 0;
+    do {
+      for (int k = 0; k < input.files.size(); k++) {
+        if (input.reached.get(k) < pass.needs)
+          continue;
+        String file = input.files.get(k);
+        Object prepared = pass.prepare(file);
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        sink = pass.run(file, prepared);
+        nanos += System.nanoTime() - start;
+        long after = allocatedBytes();
+        bytes = bytes < 0 || after < 0 ? -1 : bytes + after - allocated;
+      }
+      ops++;
+    } while (System.nanoTime() < end);
+    return new long[] { ops, nanos, bytes };
+  }
+
+  private static long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+      if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  // A directory for the synthetic programs and the output of print and
+  // unparse, removed at the end
+
+  private static File scratch() {
+    if (scratch == null) {
+      try {
+        scratch = Files.createTempDirectory("vcbench").toFile();
+      } catch (IOException e) {
+        throw new IllegalStateException("can't make a temporary directory: " + e);
+      }
+    }
+    return scratch;
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null)
+      for (File file : files)
+        delete(file);
+    f.delete();
+  }
+
+  // A synthetic program of n functions, with loops, conditions, local
+  // arrays, calls, floats, booleans and strings, and a main function
+  // that calls some of them
+
+  private static Input synthetic(int n) throws IOException {
+    StringBuilder s = new StringBuilder();
+    s.append("int g;\n");
+    s.append("float scale = 1.5;\n");
+    for (int k = 0; k < n; k++) {
+      s.append("int f" + k + "(int a, int b) {\n");
+      s.append("  int i; int s; float x; boolean done; int v[8];\n");
+      s.append("  s = 0; x = 1.0; done = false;\n");
+      s.append("  for (i = 0; i < a && !done; i = i + 1) {\n");
+      s.append("    v[i - i / 8 * 8] = i * b + " + k + ";\n");
+      s.append("    if (i / 3 * 3 == i && b > i) s = s + v[i - i / 8 * 8]; else s = s - " + k + ";\n");
+      s.append("    while (s > 1000) s = s / 2;\n");
+      s.append("    x = x * scale + s;\n");
+      s.append("    done = x > 1.0e6 || s < -1000;\n");
+      s.append("  }\n");
+      if (k > 0)
+        s.append("  if (a > 1) s = s + f" + (k - 1) + "(a - 1, b);\n");
+      s.append("  if (s < 0) putStringLn(\"f" + k + ": negative\");\n");
+      s.append("  g = g + 1;\n");
+      s.append("  return s + " + k + ";\n");
+      s.append("}\n");
+    }
+    s.append("int main() {\n");
+    s.append("  int t;\n");
+    s.append("  t = 0;\n");
+    for (int k = 0; k < n; k += Math.max(1, n / 16))
+      s.append("  t = t + f" + k + "(5, 3);\n");
+    s.append("  putIntLn(t);\n");
+    s.append("  return 0;\n");
+    s.append("}\n");
+
+    File file = new File(scratch(), "synthetic" + n + ".vc");
+    // SourceFile reads the file in the default charset
+    Files.write(file.toPath(), s.toString().getBytes(Charset.defaultCharset()));
+    Input input = new Input("synthetic-" + n);
+    input.files.add(file.getPath());
+    return input;
+  }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * BuildCache.java
+ */
+
+// A cache of the files written by the compiler, so that a file that has
+// been compiled before is not compiled again:
+//
+//   java VC.vc --cache[=dir] [--cache-size=MB] [-options] files
+//
+// The key of a compilation is the SHA-256 hash of the name and the
+// bytes of the source, the options that change what is written (-O,
+// -p, -l, -s, -j, -t, -u) and the version of the compiler, which is
+// the hash of all its class files. The files written for a
+// key (the class file or .j file and the files of -t and -u) are kept
+// in dir/key (dir is .vccache by default). When the key of a file is
+// found, they are restored by hard links (or copies where links cannot
+// be made) and the file is not compiled.
+//
+// As a restored file may be a link into the cache, vc.compile removes
+// an output before writing it rather than writing over it. At the end
+// of a build, the entries used least recently are removed until the
+// cache is no larger than the given size (64 MB by default), and the
+// hits and misses of the build are reported.
+//
+// Compilations with -run, -d, -P or -stats are not cached, as what they
+// do besides writing files cannot be restored.
+
+package VC;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+final class BuildCache {
+
+  static final String DEFAULT_DIR = ".vccache";
+  static final int DEFAULT_SIZE = 64;
+
+  private static byte[] version;
+
+  // in the name of an entry being made (see store)
+  private static final String TMP = ".tmp";
+
+  private final File dir;
+  private final long maxSize;
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+
+  BuildCache(String dir, int maxSizeMB) {
+    this.dir = new File(dir);
+    maxSize = maxSizeMB * 1024L * 1024L;
+  }
+
+  // true if the compilation of a file with the options can be cached
+
+  static boolean caches(Options options) {
+    return ! options.running && options.drawingAST == 0 && ! options.reportingPeephole && ! options.stats;
+  }
+
+  // the key of the compilation of inputFilename with the options, or
+  // null if the file cannot be read
+
+  String key(String inputFilename, Options options) {
+    byte[] source;
+    try {
+      source = Files.readAllBytes(new File(inputFilename).toPath());
+    } catch (IOException e) {
+      return null;
+    }
+    MessageDigest md = sha256();
+    md.update(version());
+    md.update((inputFilename + "\n" + options.optimising + " " + options.peephole + " "
+               + options.peepholeRules + " " + options.rotatingLoops + " " + options.staticMethods + " "
+               + options.writingJasmin + " " + options.printingAST + " " + options.unparsingAST
+               + "\n").getBytes(StandardCharsets.UTF_8));
+    md.update(source);
+    return hex(md.digest());
+  }
+
+  // The version of the compiler is the hash of all its classes, i.e.,
+  // of the class files of the package VC and the packages below it in
+  // the directories and jars of the class path. Other class files
+  // found there, such as those compiled from the .vc files next to the
+  // sources, do not declare a class of these packages and are left out.
+
+  private static synchronized byte[] version() {
+    if (version == null) {
+      MessageDigest md = sha256();
+      try {
+        Enumeration<URL> roots = BuildCache.class.getClassLoader().getResources("VC");
+        while (roots.hasMoreElements()) {
+          URL root = roots.nextElement();
+          if (root.getProtocol().equals("file"))
+            hashClasses(md, new File(root.toURI()), "VC/");
+          else if (root.getProtocol().equals("jar"))
+            hashClasses(md, ((JarURLConnection) root.openConnection()).getJarFile());
+        }
+      } catch (IOException e) {
+        md.update((byte) 0);
+      } catch (URISyntaxException e) {
+        md.update((byte) 0);
+      }
+      version = md.digest();
+    }
+    return version;
+  }
+
+  private static void hashClasses(MessageDigest md, File dir, String prefix) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    Arrays.sort(files);
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isDirectory()) {
+        if (! name.startsWith("."))  // such as the build cache
+          hashClasses(md, file, prefix + name + "/");
+      } else if (name.endsWith(".class")) {
+        String className = prefix + name.substring(0, name.length() - 6);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        // the class file of VC/X/Y names its class VC/X/Y
+        if (new String(bytes, StandardCharsets.ISO_8859_1).indexOf(className) >= 0) {
+          md.update(className.getBytes(StandardCharsets.UTF_8));
+          md.update(bytes);
+        }
+      }
+    }
+  }
+
+  private static void hashClasses(MessageDigest md, JarFile jar) throws IOException {
+    byte[] buffer = new byte[8192];
+    Enumeration<JarEntry> entries = jar.entries();
+    while (entries.hasMoreElements()) {
+      JarEntry entry = entries.nextElement();
+      if (! entry.getName().startsWith("VC/") || ! entry.getName().endsWith(".class"))
+        continue;
+      md.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+      InputStream in = jar.getInputStream(entry);
+      try {
+        int n;
+        while ((n = in.read(buffer)) > 0)
+          md.update(buffer, 0, n);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder s = new StringBuilder();
+    for (byte b : bytes)
+      s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return s.toString();
+  }
+
+  // Restores the files of the entry of key into outputs and returns
+  // true, or returns false (a miss) if there is no such entry
+
+  boolean restore(String key, String[] outputs) {
+    File entry = new File(dir, key);
+    if (entry.isDirectory()) {
+      try {
+        for (int i = 0; i < outputs.length; i++) {
+          File cached = new File(entry, Integer.toString(i));
+          File output = new File(outputs[i]);
+          Files.deleteIfExists(output.toPath());
+          try {
+            Files.createLink(output.toPath(), cached.toPath());
+          } catch (IOException e) {
+            Files.copy(cached.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          } catch (UnsupportedOperationException e) {
+            Files.copy(cached.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          }
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        // the entry has been removed (or was never complete)
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  // Copies the outputs into the entry of key. The entry is made under
+  // another name and then renamed, so that it is never seen half-made.
+
+  void store(String key, String[] outputs) {
+    File entry = new File(dir, key);
+    File tmp = new File(dir, key + TMP + System.nanoTime() + "-" + Thread.currentThread().getId());
+    try {
+      Files.createDirectories(tmp.toPath());
+      for (int i = 0; i < outputs.length; i++)
+        Files.copy(new File(outputs[i]).toPath(), new File(tmp, Integer.toString(i)).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // already stored by another compilation, or the cache cannot be
+      // written: the build goes on without it
+      delete(tmp);
+    }
+  }
+
+  // Removes the entries used least recently until the cache fits into
+  // its size and reports the hits and misses of the build. The entries
+  // still being made (by this or another build sharing the cache) are
+  // neither counted nor removed.
+
+  void close() {
+    File[] entries = dir.listFiles(new FileFilter() {
+      public boolean accept(File f) {
+        return f.getName().indexOf(TMP) < 0;
+      }
+    });
+    int evicted = 0;
+    if (entries != null) {
+      long size = 0;
+      long[] sizes = new long[entries.length];
+      for (int i = 0; i < entries.length; i++) {
+        sizes[i] = size(entries[i]);
+        size += sizes[i];
+      }
+      if (size > maxSize) {
+        Integer[] order = new Integer[entries.length];
+        final long[] used = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+          order[i] = i;
+          used[i] = entries[i].lastModified();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return Long.compare(used[a], used[b]);
+          }
+        });
+        for (int k = 0; k < order.length && size > maxSize; k++) {
+          delete(entries[order[k]]);
+          size -= sizes[order[k]];
+          evicted++;
+        }
+      }
+    }
+    System.out.println("[# vc #]: build cache: " + hits.get() + (hits.get() == 1 ? " hit, " : " hits, ")
+                       + misses.get() + (misses.get() == 1 ? " miss" : " misses")
+                       + (evicted > 0 ? ", " + evicted + " old entries removed" : ""));
+  }
+
+  private static long size(File f) {
+    if (! f.isDirectory())
+      return f.length();
+    long size = 0;
+    File[] files = f.listFiles();
+    if (files != null)
+      for (File file : files)
+        size += size(file);
+    return size;
+  }
+
+  private static void delete(File f) {
+    File[] files = f.listFiles();
+    if (files != null)
+      for (File file : files)
+        delete(file);
+    f.delete();
+  }
+
+}
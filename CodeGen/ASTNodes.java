@@ -0,0 +1,90 @@
+/*
+ * ASTNodes.java
+ */
+
+// Counts the nodes of an AST, for the statistics of -stats and the
+// events recorded by JDK Flight Recorder (see Stats.java and
+// Events.java).
+//
+// The children of a node are found by reflection: they are the nodes
+// in its fields other than parent and those set by the Checker (decl
+// and type), which refer to nodes elsewhere in the AST or in the
+// standard environment. The AST is walked with a stack of its own, as
+// the lists of a large program are too deep to be walked recursively.
+
+package VC.CodeGen;
+
+import VC.ASTs.AST;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class ASTNodes {
+
+  // The fields of every class of AST nodes that hold its children
+  private static final HashMap<Class<?>, Field[]> fields = new HashMap<Class<?>, Field[]>();
+
+  private ASTNodes() {
+  }
+
+  // the number of nodes in the AST ast, which are also counted by the
+  // name of their class into byClass (unless it is null)
+
+  public static int count(AST ast, Map<String, Integer> byClass) {
+    int count = 0;
+    ArrayDeque<AST> work = new ArrayDeque<AST>();
+    work.push(ast);
+    while (! work.isEmpty()) {
+      AST node = work.pop();
+      count++;
+      if (byClass != null) {
+        String name = node.getClass().getSimpleName();
+        Integer n = byClass.get(name);
+        byClass.put(name, n == null ? 1 : n + 1);
+      }
+      for (AST child : children(node))
+        work.push(child);
+    }
+    return count;
+  }
+
+  public static ArrayList<AST> children(AST node) {
+    Field[] children = fields(node.getClass());
+    ArrayList<AST> result = new ArrayList<AST>(children.length);
+    try {
+      for (Field f : children) {
+        AST child = (AST) f.get(node);
+        if (child != null)
+          result.add(child);
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    return result;
+  }
+
+  private static Field[] fields(Class<?> c) {
+    synchronized (fields) {
+      Field[] children = fields.get(c);
+      if (children == null) {
+        ArrayList<Field> list = new ArrayList<Field>();
+        for (Class<?> k = c; k != null; k = k.getSuperclass())
+          for (Field f : k.getDeclaredFields())
+            if (AST.class.isAssignableFrom(f.getType()) && ! Modifier.isStatic(f.getModifiers())
+                && ! f.getName().equals("parent") && ! f.getName().equals("decl")
+                && ! f.getName().equals("type")) {
+              f.setAccessible(true);
+              list.add(f);
+            }
+        children = list.toArray(new Field[list.size()]);
+        fields.put(c, children);
+      }
+      return children;
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * ASTWalker.java
+ */
+
+// A visitor that does nothing but walk the whole (decorated) AST in
+// evaluation order. The analyses used by the code generator extend
+// it and override only the visitor methods for the nodes they are
+// interested in, calling the inherited method to keep on walking.
+
+package VC.CodeGen;
+
+import VC.ASTs.*;
+
+public class ASTWalker implements Visitor {
+
+  // Programs
+
+  public Object visitProgram(Program ast, Object o) {
+    ast.FL.visit(this, o);
+    return null;
+  }
+
+  // Lists for denoting the null reference
+
+  public Object visitEmptyDeclList(EmptyDeclList ast, Object o) {
+    return null;
+  }
+
+  public Object visitEmptyStmtList(EmptyStmtList ast, Object o) {
+    return null;
+  }
+
+  public Object visitEmptyExprList(EmptyExprList ast, Object o) {
+    return null;
+  }
+
+  public Object visitEmptyParaList(EmptyParaList ast, Object o) {
+    return null;
+  }
+
+  public Object visitEmptyArgList(EmptyArgList ast, Object o) {
+    return null;
+  }
+
+  // Declarations
+
+  public Object visitDeclList(DeclList ast, Object o) {
+    ast.D.visit(this, o);
+    ast.DL.visit(this, o);
+    return null;
+  }
+
+  public Object visitFuncDecl(FuncDecl ast, Object o) {
+    ast.PL.visit(this, o);
+    ast.S.visit(this, o);
+    return null;
+  }
+
+  public Object visitGlobalVarDecl(GlobalVarDecl ast, Object o) {
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+    if (ast.T.isArrayType())
+      ((ArrayType) ast.T).E.visit(this, o);
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  // Statements
+
+  public Object visitStmtList(StmtList ast, Object o) {
+    ast.S.visit(this, o);
+    ast.SL.visit(this, o);
+    return null;
+  }
+
+  public Object visitIfStmt(IfStmt ast, Object o) {
+    ast.E.visit(this, o);
+    ast.S1.visit(this, o);
+    ast.S2.visit(this, o);
+    return null;
+  }
+
+  public Object visitWhileStmt(WhileStmt ast, Object o) {
+    ast.E.visit(this, o);
+    ast.S.visit(this, o);
+    return null;
+  }
+
+  public Object visitForStmt(ForStmt ast, Object o) {
+    ast.E1.visit(this, o);
+    ast.E2.visit(this, o);
+    ast.S.visit(this, o);
+    ast.E3.visit(this, o);
+    return null;
+  }
+
+  public Object visitBreakStmt(BreakStmt ast, Object o) {
+    return null;
+  }
+
+  public Object visitContinueStmt(ContinueStmt ast, Object o) {
+    return null;
+  }
+
+  public Object visitReturnStmt(ReturnStmt ast, Object o) {
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  public Object visitCompoundStmt(CompoundStmt ast, Object o) {
+    ast.DL.visit(this, o);
+    ast.SL.visit(this, o);
+    return null;
+  }
+
+  public Object visitExprStmt(ExprStmt ast, Object o) {
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  public Object visitEmptyCompStmt(EmptyCompStmt ast, Object o) {
+    return null;
+  }
+
+  public Object visitEmptyStmt(EmptyStmt ast, Object o) {
+    return null;
+  }
+
+  // Expressions
+
+  public Object visitIntExpr(IntExpr ast, Object o) {
+    return null;
+  }
+
+  public Object visitFloatExpr(FloatExpr ast, Object o) {
+    return null;
+  }
+
+  public Object visitBooleanExpr(BooleanExpr ast, Object o) {
+    return null;
+  }
+
+  public Object visitStringExpr(StringExpr ast, Object o) {
+    return null;
+  }
+
+  public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+    ast.E1.visit(this, o);
+    ast.E2.visit(this, o);
+    return null;
+  }
+
+  public Object visitInitExpr(InitExpr ast, Object o) {
+    ast.IL.visit(this, o);
+    return null;
+  }
+
+  public Object visitExprList(ExprList ast, Object o) {
+    ast.E.visit(this, o);
+    ast.EL.visit(this, o);
+    return null;
+  }
+
+  public Object visitArrayExpr(ArrayExpr ast, Object o) {
+    ast.V.visit(this, o);
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  public Object visitVarExpr(VarExpr ast, Object o) {
+    ast.V.visit(this, o);
+    return null;
+  }
+
+  public Object visitCallExpr(CallExpr ast, Object o) {
+    ast.AL.visit(this, o);
+    return null;
+  }
+
+  public Object visitAssignExpr(AssignExpr ast, Object o) {
+    ast.E1.visit(this, o);
+    ast.E2.visit(this, o);
+    return null;
+  }
+
+  public Object visitEmptyExpr(EmptyExpr ast, Object o) {
+    return null;
+  }
+
+  // Literals, identifiers and operators
+
+  public Object visitIntLiteral(IntLiteral ast, Object o) {
+    return null;
+  }
+
+  public Object visitFloatLiteral(FloatLiteral ast, Object o) {
+    return null;
+  }
+
+  public Object visitBooleanLiteral(BooleanLiteral ast, Object o) {
+    return null;
+  }
+
+  public Object visitStringLiteral(StringLiteral ast, Object o) {
+    return null;
+  }
+
+  public Object visitIdent(Ident ast, Object o) {
+    return null;
+  }
+
+  public Object visitOperator(Operator ast, Object o) {
+    return null;
+  }
+
+  // Parameters
+
+  public Object visitParaList(ParaList ast, Object o) {
+    ast.P.visit(this, o);
+    ast.PL.visit(this, o);
+    return null;
+  }
+
+  public Object visitParaDecl(ParaDecl ast, Object o) {
+    return null;
+  }
+
+  // Arguments
+
+  public Object visitArgList(ArgList ast, Object o) {
+    ast.A.visit(this, o);
+    ast.AL.visit(this, o);
+    return null;
+  }
+
+  public Object visitArg(Arg ast, Object o) {
+    ast.E.visit(this, o);
+    return null;
+  }
+
+  // Types
+
+  public Object visitVoidType(VoidType ast, Object o) {
+    return null;
+  }
+
+  public Object visitBooleanType(BooleanType ast, Object o) {
+    return null;
+  }
+
+  public Object visitIntType(IntType ast, Object o) {
+    return null;
+  }
+
+  public Object visitFloatType(FloatType ast, Object o) {
+    return null;
+  }
+
+  public Object visitStringType(StringType ast, Object o) {
+    return null;
+  }
+
+  public Object visitArrayType(ArrayType ast, Object o) {
+    return null;
+  }
+
+  public Object visitErrorType(ErrorType ast, Object o) {
+    return null;
+  }
+
+  // Variables
+
+  public Object visitSimpleVar(SimpleVar ast, Object o) {
+    return null;
+  }
+
+}
@@ -0,0 +1,622 @@
+/*
+ * ClassFileWriter.java
+ */
+
+// Assembles the code in a CodeBuffer into a class file, so that the
+// output of the compiler can be run without Jasmin.
+//
+// The directives and instructions are translated as Jasmin would:
+//
+//   .class, .super, .field   the class and its static fields
+//   .method ... .end method  a method with a Code attribute, whose
+//                            max_locals is given by .limit locals
+//   .var                     an entry of the LocalVariableTable
+//   .source                  the SourceFile attribute
+//
+// The class file has version 52, so every method that has branches
+// needs a StackMapTable. Its frames at the branch targets, and the
+// exact max_stack, are computed by StackMap (the .limit stack of the
+// Frame is only used by Jasmin). The instructions that StackMap finds
+// unreachable are left out, as the verifier would require frames for
+// them too.
+//
+// Every method is assembled in two passes. The first pass finds the
+// addresses of the labels (adding the constants used by ldc to the
+// constant pool, since ldc_w is needed for a constant whose index
+// does not fit into a byte) and the second pass encodes the
+// instructions with their branch offsets. The wide prefix is added
+// to the loads, stores and iinc's that need it, and the short forms
+// such as iload_1 are used for the indices 0 - 3. A branch whose
+// offset does not fit into 16 bits is made long: a goto becomes a
+// goto_w and a conditional branch becomes the opposite branch around
+// a goto_w (whose next instruction then needs a frame, too). The
+// addresses are found again until no more branches have to be made
+// long. A method whose code is longer than the JVM allows is reported
+// with a CodeGenException.
+//
+// The code may be added in parts (e.g., one method at a time, see
+// Emitter.setStreaming), and only the encoded methods are kept until
+// the class file is written. The class file is built in memory and
+// written with a single write to a FileChannel.
+
+package VC.CodeGen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+public final class ClassFileWriter {
+
+  // Class file version 52 (Java 8): verified with the StackMapTables
+  private static final int MAJOR_VERSION = 52;
+
+  private static final int
+    ACC_PUBLIC = 0x0001,
+    ACC_STATIC = 0x0008,
+    ACC_SUPER = 0x0020;
+
+  private static final int
+    CONSTANT_Utf8 = 1,
+    CONSTANT_Integer = 3,
+    CONSTANT_Float = 4,
+    CONSTANT_Class = 7,
+    CONSTANT_String = 8,
+    CONSTANT_Fieldref = 9,
+    CONSTANT_Methodref = 10,
+    CONSTANT_NameAndType = 12;
+
+  // The constant pool
+  private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+  private final DataOutputStream pool = new DataOutputStream(poolBytes);
+  private final HashMap<String, Integer> constants = new HashMap<String, Integer>();
+  private int poolCount = 1;
+
+  private String thisClass, superClass, sourceFile;
+  private final ArrayList<String[]> fields = new ArrayList<String[]>();
+  private final ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+  // the code being added
+  private CodeBuffer code;
+
+  // Assembles the directives and methods in code
+
+  public void add(CodeBuffer code) {
+    this.code = code;
+    try {
+      int addr = 0;
+      while (addr < code.size()) {
+        int op = code.op(addr++);
+        if (op == JVM.METHOD_START) {
+          String[] header = (".method " + code.string(code.arg(addr - 1))).split("\\s+");
+          ArrayList<Integer> body = new ArrayList<Integer>();
+          while (addr < code.size() && code.op(addr) != JVM.METHOD_END)
+            body.add(addr++);
+          addr++;
+          methods.add(method(header, body));
+        } else if (op == JVM.TEXT) {
+          String line = code.string(code.arg(addr - 1)).trim();
+          String[] tokens = line.split("\\s+");
+          if (line.startsWith(JVM.CLASS + " "))
+            thisClass = tokens[tokens.length - 1];
+          else if (line.startsWith(JVM.SUPER + " "))
+            superClass = tokens[1];
+          else if (line.startsWith(JVM.SOURCE + " "))
+            sourceFile = tokens[1];
+          else if (line.startsWith(".field "))
+            fields.add(tokens);
+        }
+      }
+    } catch (IOException e) {
+      throw new CodeGenException("Error writing class file: " + e);
+    }
+    this.code = null;
+  }
+
+  // Writes the class file of the code added into filename. An error
+  // is reported with a CodeGenException rather than by exiting, as the
+  // compiler may be run by a server (or a program) that goes on.
+
+  public void write(String filename) {
+    try {
+      byte[] bytes = toByteArray();
+      FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      channel.close();
+    } catch (IOException e) {
+      throw new CodeGenException("Error writing class file: " + e);
+    }
+  }
+
+  // the class file of the code added
+
+  public byte[] toByteArray() {
+    try {
+      return assemble();
+    } catch (IOException e) {
+      throw new CodeGenException("Error writing class file: " + e);
+    }
+  }
+
+  private byte[] assemble() throws IOException {
+    int thisIndex = classConstant(thisClass);
+    int superIndex = classConstant(superClass);
+    for (String[] f : fields) {
+      utf8(f[f.length - 2]);
+      utf8(f[f.length - 1]);
+    }
+    int sourceIndex = 0;
+    if (sourceFile != null) {
+      utf8("SourceFile");
+      sourceIndex = utf8(sourceFile);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(MAJOR_VERSION);
+    out.writeShort(poolCount);
+    poolBytes.writeTo(out);
+    out.writeShort(ACC_PUBLIC | ACC_SUPER);
+    out.writeShort(thisIndex);
+    out.writeShort(superIndex);
+    out.writeShort(0);  // no interfaces
+
+    out.writeShort(fields.size());
+    for (String[] f : fields) {
+      out.writeShort(accessFlags(f, 1, f.length - 2));
+      out.writeShort(utf8(f[f.length - 2]));
+      out.writeShort(utf8(f[f.length - 1]));
+      out.writeShort(0);
+    }
+
+    out.writeShort(methods.size());
+    for (byte[] m : methods)
+      out.write(m);
+
+    if (sourceFile == null)
+      out.writeShort(0);
+    else {
+      out.writeShort(1);
+      out.writeShort(utf8("SourceFile"));
+      out.writeInt(2);
+      out.writeShort(sourceIndex);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static int accessFlags(String[] tokens, int from, int to) {
+    int flags = 0;
+    for (int i = from; i < to; i++) {
+      if (tokens[i].equals("public"))
+        flags |= ACC_PUBLIC;
+      else if (tokens[i].equals("static"))
+        flags |= ACC_STATIC;
+    }
+    return flags;
+  }
+
+  // Methods
+
+  private byte[] method(String[] header, ArrayList<Integer> body) throws IOException {
+    String signature = header[header.length - 1];
+    int paren = signature.indexOf('(');
+    int nameIndex = utf8(signature.substring(0, paren));
+    int descIndex = utf8(signature.substring(paren));
+
+    // The instructions, with every label mapped to the index of the
+    // instruction that follows it
+    int maxLocals = 0;
+    HashMap<Integer, Integer> labels = new HashMap<Integer, Integer>();
+    ArrayList<Integer> insts = new ArrayList<Integer>();
+    ArrayList<Integer> vars = new ArrayList<Integer>();
+    for (int line : body) {
+      int op = code.op(line);
+      if (op == JVM.LIMIT_LOCALS)
+        maxLocals = code.arg(line);
+      else if (op == JVM.VAR)
+        vars.add(line);
+      else if (op == JVM.LABEL)
+        labels.put(code.arg(line), insts.size());
+      else if (JVM.isInstruction(op))
+        insts.add(line);
+    }
+
+    // The frames (and the exact max_stack). The instructions that are
+    // never reached are removed, since they would have no frames.
+    boolean isStatic = (accessFlags(header, 1, header.length - 1) & ACC_STATIC) != 0;
+    StackMap map = StackMap.analyse(code, insts, labels, thisClass,
+                                    signature.substring(paren), isStatic, maxLocals);
+    int[] newIndex = new int[insts.size() + 1];
+    ArrayList<Integer> reached = new ArrayList<Integer>();
+    ArrayList<StackMap.Frame> frames = new ArrayList<StackMap.Frame>();
+    for (int i = 0; i < insts.size(); i++) {
+      newIndex[i] = reached.size();
+      if (map.frames[i] != null) {
+        reached.add(insts.get(i));
+        frames.add(map.frames[i]);
+      }
+    }
+    newIndex[insts.size()] = reached.size();
+    for (int label : labels.keySet())
+      labels.put(label, newIndex[labels.get(label)]);
+
+    // Pass 1: the addresses of the instructions and labels, and the
+    // branches that have to be long
+    int[] pcs = new int[reached.size() + 1];
+    boolean[] far = new boolean[reached.size()];
+    HashMap<Integer, Integer> addresses = new HashMap<Integer, Integer>();
+    boolean changed = true;
+    while (changed) {
+      for (int i = 0; i < reached.size(); i++)
+        pcs[i + 1] = pcs[i] + size(reached.get(i), far[i]);
+      for (int label : labels.keySet())
+        addresses.put(label, pcs[labels.get(label)]);
+      changed = false;
+      for (int i = 0; i < reached.size(); i++) {
+        int line = reached.get(i);
+        if (far[i] || ! JVM.isBranch(code.op(line)))
+          continue;
+        Integer target = addresses.get(code.arg(line));
+        if (target != null && (target - pcs[i] < Short.MIN_VALUE || target - pcs[i] > Short.MAX_VALUE)) {
+          far[i] = true;
+          changed = true;
+        }
+      }
+    }
+    if (pcs[reached.size()] > JVM.MAX_SHORT)
+      throw new CodeGenException("Error writing class file: the code of "
+                                 + signature.substring(0, paren) + " is longer than "
+                                 + JVM.MAX_SHORT + " bytes");
+
+    // Pass 2: the code
+    TreeSet<Integer> targets = new TreeSet<Integer>();
+    ByteArrayOutputStream codeBytes = new ByteArrayOutputStream();
+    DataOutputStream codeOut = new DataOutputStream(codeBytes);
+    for (int i = 0; i < reached.size(); i++) {
+      int line = reached.get(i);
+      encode(line, codeOut, codeBytes.size(), addresses, far[i]);
+      if (JVM.isBranch(code.op(line)))
+        targets.add(labels.get(code.arg(line)));
+      if (far[i] && JVM.isConditional(code.op(line)))
+        targets.add(i + 1);
+    }
+    codeOut.flush();
+
+    // StackMapTable: the frames at the branch targets
+    ByteArrayOutputStream smtBytes = new ByteArrayOutputStream();
+    DataOutputStream smt = new DataOutputStream(smtBytes);
+    ArrayList<String> locals = map.entry.usedLocals();
+    int previous = -1;
+    for (int i : targets) {
+      StackMap.Frame f = frames.get(i);
+      ArrayList<String> used = f.usedLocals();
+      int delta = pcs[i] - previous - 1;
+      int chop = locals.size() - used.size();
+      if (used.equals(locals) && f.stack.isEmpty()) {
+        if (delta < 64)
+          smt.writeByte(delta);                            // same_frame
+        else {
+          smt.writeByte(251);                              // same_frame_extended
+          smt.writeShort(delta);
+        }
+      } else if (used.equals(locals) && f.stack.size() == 1) {
+        if (delta < 64)
+          smt.writeByte(64 + delta);                       // same_locals_1_stack_item
+        else {
+          smt.writeByte(247);                              // ..._extended
+          smt.writeShort(delta);
+        }
+        verificationType(smt, f.stack.get(0), newIndex, pcs);
+      } else if (f.stack.isEmpty() && 0 < chop && chop <= 3
+                 && used.equals(locals.subList(0, used.size()))) {
+        smt.writeByte(251 - chop);                         // chop_frame
+        smt.writeShort(delta);
+      } else if (f.stack.isEmpty() && -3 <= chop && chop < 0
+                 && locals.equals(used.subList(0, locals.size()))) {
+        smt.writeByte(251 - chop);                         // append_frame
+        smt.writeShort(delta);
+        for (String t : used.subList(locals.size(), used.size()))
+          verificationType(smt, t, newIndex, pcs);
+      } else {
+        smt.writeByte(255);                                // full_frame
+        smt.writeShort(delta);
+        smt.writeShort(used.size());
+        for (String t : used)
+          verificationType(smt, t, newIndex, pcs);
+        smt.writeShort(f.stack.size());
+        for (String t : f.stack)
+          verificationType(smt, t, newIndex, pcs);
+      }
+      locals = used;
+      previous = pcs[i];
+    }
+    smt.flush();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(accessFlags(header, 1, header.length - 1));
+    out.writeShort(nameIndex);
+    out.writeShort(descIndex);
+    out.writeShort(1);
+
+    // LocalVariableTable: .var n is name T from L1 to L2
+    ByteArrayOutputStream lvtBytes = new ByteArrayOutputStream();
+    DataOutputStream lvt = new DataOutputStream(lvtBytes);
+    int numVars = 0;
+    for (int v : vars) {
+      int start = addresses.get(code.arg3(v));
+      if (start >= codeBytes.size())
+        continue;  // in the removed code at the end
+      String[] nameAndType = code.string(code.arg2(v)).split(" ");
+      lvt.writeShort(start);
+      lvt.writeShort(addresses.get(code.arg4(v)) - start);
+      lvt.writeShort(utf8(nameAndType[0]));
+      lvt.writeShort(utf8(nameAndType[1]));
+      lvt.writeShort(code.arg(v));
+      numVars++;
+    }
+    lvt.flush();
+
+    int numAttributes = 0, attributesLength = 0;
+    if (! targets.isEmpty()) {
+      numAttributes++;
+      attributesLength += 8 + smtBytes.size();
+    }
+    if (numVars > 0) {
+      numAttributes++;
+      attributesLength += 8 + lvtBytes.size();
+    }
+    out.writeShort(utf8("Code"));
+    out.writeInt(12 + codeBytes.size() + attributesLength);
+    out.writeShort(map.maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(codeBytes.size());
+    codeBytes.writeTo(out);
+    out.writeShort(0);  // no exception handlers
+    out.writeShort(numAttributes);
+    if (! targets.isEmpty()) {
+      out.writeShort(utf8("StackMapTable"));
+      out.writeInt(2 + smtBytes.size());
+      out.writeShort(targets.size());
+      smtBytes.writeTo(out);
+    }
+    if (numVars > 0) {
+      out.writeShort(utf8("LocalVariableTable"));
+      out.writeInt(2 + lvtBytes.size());
+      out.writeShort(numVars);
+      lvtBytes.writeTo(out);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  // Writes a verification_type_info (see StackMap for the types)
+
+  private void verificationType(DataOutputStream out, String type, int[] newIndex, int[] pcs)
+      throws IOException {
+    if (type.equals("T"))
+      out.writeByte(0);
+    else if (type.equals("I"))
+      out.writeByte(1);
+    else if (type.equals("F"))
+      out.writeByte(2);
+    else if (type.startsWith("U")) {
+      out.writeByte(8);
+      out.writeShort(pcs[newIndex[Integer.parseInt(type.substring(1))]]);
+    } else {
+      out.writeByte(7);
+      out.writeShort(classConstant(type.startsWith("[") ? type
+                                   : type.substring(1, type.length() - 1)));
+    }
+  }
+
+  // The number of bytes of an instruction (with a long branch if far)
+
+  private int size(int line, boolean far) throws IOException {
+    int op = code.op(line), arg = code.arg(line);
+    if (far)
+      return op == JVM.GOTO ? 5 : 8;
+    if (op == JVM.LDC)
+      return constant(line) < 256 ? 2 : 3;
+    if (op == JVM.IINC)
+      return arg > 255 || code.arg2(line) < -128 || code.arg2(line) > 127 ? 6 : 3;
+    if (JVM.isLoadOrStore(op))
+      return arg <= 3 ? 1 : arg > 255 ? 4 : 2;
+    if (op == JVM.BIPUSH || op == JVM.NEWARRAY)
+      return 2;
+    if (op == JVM.SIPUSH || JVM.isBranch(op) || op == JVM.GETSTATIC || op == JVM.PUTSTATIC
+        || op == JVM.NEW || op == JVM.INVOKESTATIC || op == JVM.INVOKESPECIAL
+        || op == JVM.INVOKEVIRTUAL)
+      return 3;
+    return 1;
+  }
+
+  private void encode(int line, DataOutputStream out, int pc,
+                      HashMap<Integer, Integer> labels, boolean far) throws IOException {
+    int op = code.op(line), arg = code.arg(line);
+
+    if (op == JVM.LDC) {
+      int index = constant(line);
+      if (index < 256) {
+        out.writeByte(op);
+        out.writeByte(index);
+      } else {
+        out.writeByte(JVM.LDC_W);
+        out.writeShort(index);
+      }
+    } else if (op == JVM.IINC) {
+      int c = code.arg2(line);
+      if (arg > 255 || c < -128 || c > 127) {
+        out.writeByte(JVM.WIDE);
+        out.writeByte(op);
+        out.writeShort(arg);
+        out.writeShort(c);
+      } else {
+        out.writeByte(op);
+        out.writeByte(arg);
+        out.writeByte(c);
+      }
+    } else if (JVM.isLoadOrStore(op)) {
+      if (arg <= 3)
+        out.writeByte(shortForm(op) + arg);
+      else if (arg > 255) {
+        out.writeByte(JVM.WIDE);
+        out.writeByte(op);
+        out.writeShort(arg);
+      } else {
+        out.writeByte(op);
+        out.writeByte(arg);
+      }
+    } else if (op == JVM.BIPUSH || op == JVM.NEWARRAY) {
+      out.writeByte(op);
+      out.writeByte(arg);
+    } else if (op == JVM.SIPUSH) {
+      out.writeByte(op);
+      out.writeShort(arg);
+    } else if (JVM.isBranch(op)) {
+      Integer target = labels.get(arg);
+      if (target == null)
+        throw new CodeGenException("Error writing class file: undefined label L" + arg);
+      if (! far) {
+        out.writeByte(op);
+        out.writeShort(target - pc);
+      } else if (op == JVM.GOTO) {
+        out.writeByte(JVM.GOTO_W);
+        out.writeInt(target - pc);
+      } else {
+        // if<not cond> over the goto_w (3 + 5 bytes)
+        out.writeByte(JVM.negate(op));
+        out.writeShort(8);
+        out.writeByte(JVM.GOTO_W);
+        out.writeInt(target - (pc + 3));
+      }
+    } else if (op == JVM.GETSTATIC || op == JVM.PUTSTATIC) {
+      String[] operand = code.string(arg).split(" ");
+      int slash = operand[0].lastIndexOf('/');
+      out.writeByte(op);
+      out.writeShort(memberConstant(CONSTANT_Fieldref, operand[0].substring(0, slash),
+                                     operand[0].substring(slash + 1), operand[1]));
+    } else if (op == JVM.INVOKESTATIC || op == JVM.INVOKESPECIAL || op == JVM.INVOKEVIRTUAL) {
+      String operand = code.string(arg);
+      int paren = operand.indexOf('(');
+      int slash = operand.lastIndexOf('/', paren);
+      out.writeByte(op);
+      out.writeShort(memberConstant(CONSTANT_Methodref, operand.substring(0, slash),
+                                     operand.substring(slash + 1, paren),
+                                     operand.substring(paren)));
+    } else if (op == JVM.NEW) {
+      out.writeByte(op);
+      out.writeShort(classConstant(code.string(arg)));
+    } else
+      out.writeByte(op);
+  }
+
+  // The opcode of xload_0 (or xstore_0). The short forms of the
+  // opcodes 0x15 + k (iload, lload, fload, dload, aload) are 0x1a + 4k
+  // .. 0x1a + 4k + 3, and similarly for the stores.
+
+  private static int shortForm(int op) {
+    if (JVM.isLoad(op))
+      return 0x1a + 4 * (op - JVM.ILOAD);
+    return 0x3b + 4 * (op - JVM.ISTORE);
+  }
+
+  // The constant pool
+
+  private int entry(String key) {
+    Integer index = constants.get(key);
+    return index == null ? 0 : index;
+  }
+
+  private int add(String key) {
+    constants.put(key, poolCount);
+    return poolCount++;
+  }
+
+  private int utf8(String s) throws IOException {
+    int index = entry("U" + s);
+    if (index == 0) {
+      index = add("U" + s);
+      pool.writeByte(CONSTANT_Utf8);
+      pool.writeUTF(s);
+    }
+    return index;
+  }
+
+  private int classConstant(String name) throws IOException {
+    int index = entry("C" + name);
+    if (index == 0) {
+      int nameIndex = utf8(name);
+      index = add("C" + name);
+      pool.writeByte(CONSTANT_Class);
+      pool.writeShort(nameIndex);
+    }
+    return index;
+  }
+
+  private int memberConstant(int tag, String owner, String name, String desc) throws IOException {
+    String key = tag + owner + "." + name + ":" + desc;
+    int index = entry(key);
+    if (index == 0) {
+      int classIndex = classConstant(owner);
+      int ntKey = entry("N" + name + ":" + desc);
+      if (ntKey == 0) {
+        int nameIndex = utf8(name), descIndex = utf8(desc);
+        ntKey = add("N" + name + ":" + desc);
+        pool.writeByte(CONSTANT_NameAndType);
+        pool.writeShort(nameIndex);
+        pool.writeShort(descIndex);
+      }
+      index = add(key);
+      pool.writeByte(tag);
+      pool.writeShort(classIndex);
+      pool.writeShort(ntKey);
+    }
+    return index;
+  }
+
+  // the constant of an ldc instruction
+
+  private int constant(int line) throws IOException {
+    int c = code.arg(line);
+    int index;
+    if (code.arg2(line) == JVM.LDC_STRING) {
+      String s = code.string(c);
+      index = entry("S" + s);
+      if (index == 0) {
+        int utf8Index = utf8(s);
+        index = add("S" + s);
+        pool.writeByte(CONSTANT_String);
+        pool.writeShort(utf8Index);
+      }
+    } else if (code.arg2(line) == JVM.LDC_FLOAT) {
+      index = entry("F" + c);
+      if (index == 0) {
+        index = add("F" + c);
+        pool.writeByte(CONSTANT_Float);
+        pool.writeInt(c);
+      }
+    } else {
+      index = entry("I" + c);
+      if (index == 0) {
+        index = add("I" + c);
+        pool.writeByte(CONSTANT_Integer);
+        pool.writeInt(c);
+      }
+    }
+    return index;
+  }
+
+}
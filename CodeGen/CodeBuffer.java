@@ -0,0 +1,277 @@
+/*
+ * CodeBuffer.java
+ */
+
+// The code generated for one compilation, owned by its Emitter and
+// passed to the optimisations and to the writers of the output.
+//
+// The code is kept in parallel arrays with one entry for every line
+// of the Jasmin code: op(i) is the opcode of an instruction or one of
+// the pseudo opcodes (see JVM) of the labels and directives, and
+// arg(i) .. arg4(i) are its operands:
+//
+//   xload, xstore     arg: the index of the local variable (the short
+//                     forms such as iload_1 are chosen when the code
+//                     is written)
+//   iinc              arg: the index, arg2: the constant
+//   bipush, sipush    arg: the constant
+//   newarray          arg: the element type (T_INT, ...)
+//   goto, ifXX        arg: the label (n for Ln)
+//   ldc               arg: the int, the bits of the float (see
+//                     Float.floatToIntBits) or the index of the string
+//                     in the string table; arg2: the kind of the
+//                     constant (LDC_INT, ...)
+//   getstatic, putstatic, invokeXX, new
+//                     arg: the index of the operand (as written in
+//                     Jasmin) in the string table
+//
+//   LABEL             arg: the label
+//   METHOD_START      arg: the index of "access name(...)..."
+//   LIMIT_LOCALS, LIMIT_STACK
+//                     arg: the limit
+//   VAR               arg: the index, arg2: the index of the string
+//                     "name T", arg3 and arg4: the labels of the scope
+//   TEXT              arg: the index of the line (any other directive,
+//                     a comment or a blank line)
+//
+// The arrays are split into segments of a fixed size, so that the
+// buffer grows by adding segments rather than by copying everything
+// into an array twice as large. The code is rendered as text only
+// when it is written by write().
+
+package VC.CodeGen;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public final class CodeBuffer {
+
+  private static final int SEGMENT_BITS = 10;
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  private int[][] ops = new int[0][];
+  private int[][] args = new int[0][];
+  private int[][] args2 = new int[0][];
+  private int[][] args3 = new int[0][];
+  private int[][] args4 = new int[0][];
+  private int segments = 0;
+
+  private int size = 0;
+
+  // The string table
+  private final ArrayList<String> strings = new ArrayList<String>();
+  private final HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+
+  // the number of lines
+
+  public int size() {
+    return size;
+  }
+
+  public int op(int i) {
+    return ops[i >> SEGMENT_BITS][i & SEGMENT_MASK];
+  }
+
+  public int arg(int i) {
+    return args[i >> SEGMENT_BITS][i & SEGMENT_MASK];
+  }
+
+  public int arg2(int i) {
+    return args2[i >> SEGMENT_BITS][i & SEGMENT_MASK];
+  }
+
+  public int arg3(int i) {
+    return args3[i >> SEGMENT_BITS][i & SEGMENT_MASK];
+  }
+
+  public int arg4(int i) {
+    return args4[i >> SEGMENT_BITS][i & SEGMENT_MASK];
+  }
+
+  public void setOp(int i, int op) {
+    ops[i >> SEGMENT_BITS][i & SEGMENT_MASK] = op;
+  }
+
+  public void setArg(int i, int arg) {
+    args[i >> SEGMENT_BITS][i & SEGMENT_MASK] = arg;
+  }
+
+  public void setArg3(int i, int arg3) {
+    args3[i >> SEGMENT_BITS][i & SEGMENT_MASK] = arg3;
+  }
+
+  public void setArg4(int i, int arg4) {
+    args4[i >> SEGMENT_BITS][i & SEGMENT_MASK] = arg4;
+  }
+
+  // Appends a line and returns its index
+
+  public int append(int op, int arg, int arg2, int arg3, int arg4) {
+    int s = size >> SEGMENT_BITS, k = size & SEGMENT_MASK;
+    if (s == segments)
+      addSegment();
+    ops[s][k] = op;
+    args[s][k] = arg;
+    args2[s][k] = arg2;
+    args3[s][k] = arg3;
+    args4[s][k] = arg4;
+    return size++;
+  }
+
+  public int append(int op, int arg, int arg2) {
+    return append(op, arg, arg2, 0, 0);
+  }
+
+  public int append(int op, int arg) {
+    return append(op, arg, 0, 0, 0);
+  }
+
+  private void addSegment() {
+    if (segments == ops.length) {
+      int n = Math.max(4, 2 * segments);
+      ops = Arrays.copyOf(ops, n);
+      args = Arrays.copyOf(args, n);
+      args2 = Arrays.copyOf(args2, n);
+      args3 = Arrays.copyOf(args3, n);
+      args4 = Arrays.copyOf(args4, n);
+    }
+    ops[segments] = new int[SEGMENT_SIZE];
+    args[segments] = new int[SEGMENT_SIZE];
+    args2[segments] = new int[SEGMENT_SIZE];
+    args3[segments] = new int[SEGMENT_SIZE];
+    args4[segments] = new int[SEGMENT_SIZE];
+    segments++;
+  }
+
+  // Appends the code in b, whose string operands are moved into the
+  // string table of this buffer
+
+  public void append(CodeBuffer b) {
+    for (int i = 0; i < b.size(); i++) {
+      int op = b.op(i), arg = b.arg(i), arg2 = b.arg2(i);
+      if (op == JVM.VAR)
+        arg2 = string(b.string(arg2));
+      else if (hasString(op, arg2))
+        arg = string(b.string(arg));
+      append(op, arg, arg2, b.arg3(i), b.arg4(i));
+    }
+  }
+
+  // true if the arg of a line is the index of a string
+
+  private static boolean hasString(int op, int arg2) {
+    return op == JVM.METHOD_START || op == JVM.TEXT || (op == JVM.LDC && arg2 == JVM.LDC_STRING)
+      || op == JVM.GETSTATIC || op == JVM.PUTSTATIC || op == JVM.NEW || op == JVM.INVOKESTATIC
+      || op == JVM.INVOKESPECIAL || op == JVM.INVOKEVIRTUAL;
+  }
+
+  // Replaces the code by lines[0 .. n - 1], the indices of the lines
+  // of the current code (or of lines appended after it) in their new
+  // order.
+
+  public void rebuild(int[] lines, int n) {
+    CodeBuffer b = new CodeBuffer();
+    for (int k = 0; k < n; k++) {
+      int i = lines[k];
+      b.append(op(i), arg(i), arg2(i), arg3(i), arg4(i));
+    }
+    ops = b.ops;
+    args = b.args;
+    args2 = b.args2;
+    args3 = b.args3;
+    args4 = b.args4;
+    segments = b.segments;
+    size = n;
+  }
+
+  // the index of s in the string table
+
+  public int string(String s) {
+    Integer i = stringIndices.get(s);
+    if (i == null) {
+      i = strings.size();
+      strings.add(s);
+      stringIndices.put(s, i);
+    }
+    return i;
+  }
+
+  public String string(int i) {
+    return strings.get(i);
+  }
+
+  // Writes the Jasmin code into writer. Jasmin cannot write the wide
+  // prefix (see JVM.WIDE), so an iinc whose index does not fit in a
+  // byte or whose constant does not fit in a signed byte is written as
+  // iload, sipush, iadd and istore, for which the Emitter leaves room
+  // on the operand stack.
+
+  public void write(PrintWriter writer) {
+    for (int addr = 0; addr < size; addr++) {
+      int index = arg(addr), c = arg2(addr);
+      if (op(addr) == JVM.IINC && (index > 255 || c < -128 || c > 127)) {
+        String var = (index <= 3 ? "_" : " ") + index;
+        writer.println("\tiload" + var);
+        writer.println("\t" + (c >= -128 && c <= 127 ? "bipush " : "sipush ") + c);
+        writer.println("\tiadd");
+        writer.println("\tistore" + var);
+        continue;
+      }
+      String line = toString(addr);
+      if (! (line.startsWith(".") || op(addr) == JVM.LABEL))
+        writer.print("\t");
+      writer.println(line);
+    }
+  }
+
+  // the Jasmin code of the line i
+
+  public String toString(int i) {
+    int op = op(i), arg = arg(i);
+    switch (op) {
+    case JVM.LABEL:
+      return "L" + arg + ":";
+    case JVM.METHOD_START:
+      return ".method " + string(arg);
+    case JVM.METHOD_END:
+      return ".end method";
+    case JVM.LIMIT_LOCALS:
+      return ".limit locals " + arg;
+    case JVM.LIMIT_STACK:
+      return ".limit stack " + arg;
+    case JVM.VAR:
+      return ".var " + arg + " is " + string(arg2(i)) + " from L" + arg3(i) + " to L" + arg4(i);
+    case JVM.TEXT:
+      return string(arg);
+    case JVM.DELETED:
+      return "; deleted";
+    }
+
+    String mnemonic = JVM.mnemonic(op);
+    if (JVM.isLoadOrStore(op))
+      return mnemonic + (arg <= 3 ? "_" : " ") + arg;
+    if (op == JVM.IINC)
+      return mnemonic + " " + arg + " " + arg2(i);
+    if (op == JVM.BIPUSH || op == JVM.SIPUSH)
+      return mnemonic + " " + arg;
+    if (op == JVM.NEWARRAY)
+      return mnemonic + " " + (arg == JVM.T_BOOLEAN ? "boolean" : arg == JVM.T_FLOAT ? "float" : "int");
+    if (JVM.isBranch(op))
+      return mnemonic + " L" + arg;
+    if (op == JVM.LDC) {
+      if (arg2(i) == JVM.LDC_INT)
+        return mnemonic + " " + arg;
+      if (arg2(i) == JVM.LDC_FLOAT)
+        return mnemonic + " " + Float.intBitsToFloat(arg);
+      return mnemonic + " \"" + string(arg) + "\"";
+    }
+    if (op == JVM.GETSTATIC || op == JVM.PUTSTATIC || op == JVM.NEW || op == JVM.INVOKESTATIC
+        || op == JVM.INVOKESPECIAL || op == JVM.INVOKEVIRTUAL)
+      return mnemonic + " " + string(arg);
+    return mnemonic;
+  }
+
+}
@@ -0,0 +1,22 @@
+/*
+ * CodeGenException.java
+ */
+
+// Thrown by the code generator when it cannot go on, such as when a
+// method needs more local variables or a deeper operand stack than the
+// JVM allows, or when its output cannot be written. The message is
+// what the compiler prints for it (see vc.compile); a program that
+// embeds the compiler gets it as a diagnostic instead (see
+// VcCompiler.java).
+
+package VC.CodeGen;
+
+public final class CodeGenException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CodeGenException(String message) {
+    super(message);
+  }
+
+}
@@ -12,13 +12,29 @@
 
 package VC.CodeGen;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Array;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Enumeration;
 import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import VC.ASTs.*;
 import VC.ErrorReporter;
+import VC.Events;
 import VC.StdEnvironment;
 
 public final class Emitter implements Visitor {
@@ -28,23 +44,188 @@ public final class Emitter implements Visitor {
   private String classname;
   private String outputFilename;
 
+  // true if the (optional) code optimisations are enabled
+  private boolean optimising;
+
+  // decides which calls are inlined (if optimising)
+  private Inliner inliner;
+
+  // applied to the generated code before it is written (if not null)
+  private Peephole peephole;
+
+  // true if loops are translated with their tests at the bottom
+  private boolean rotatingLoops;
+
+  // true if the VC functions are translated into static methods
+  // (instead of instance methods called on the vc$ object in main)
+  private boolean staticMethods;
+
+  // true if the Jasmin code is written (into classname.j next to the
+  // input file, see outputName) instead of the class file
+  private boolean writingJasmin;
+
+  // the number of threads on which the methods of the VC functions
+  // are generated (1 if they are generated one after another)
+  private int parallelism = 1;
+
+  // true if every method is optimised and written out as soon as it
+  // has been generated, so that only the code of one method is kept
+  // in memory (instead of the code of the whole program)
+  private boolean streaming;
+
+  // the code generated by gen (a new buffer for every call, or for
+  // every method if streaming)
+  private CodeBuffer code;
+
+  // true if the class file is kept in memory (see getClassFile)
+  // instead of being written into classname.class
+  private boolean keepingClassFile;
+
+  // the output of gen: the Jasmin code or the class file
+  private PrintWriter jasmin;
+  private ClassFileWriter classFile;
+  private byte[] classFileBytes;
+
+  // the number of instructions written by gen
+  private long instructions = 0;
+
   public Emitter(String inputFilename, ErrorReporter reporter) {
     this.inputFilename = inputFilename;
     errorReporter = reporter;
     
-    int i = inputFilename.lastIndexOf('.');
-    if (i > 0)
-      classname = inputFilename.substring(0, i);
-    else
-      classname = inputFilename;
-    
+    classname = classname(inputFilename);
+    outputFilename = outputName(inputFilename);
+  }
+
+  // The name of the class generated for inputFilename: the name of the
+  // file without its directory and its extension (so that d/gcd.vc is
+  // compiled into the class gcd)
+
+  private static String classname(String inputFilename) {
+    String name = new File(inputFilename).getName();
+    int i = name.lastIndexOf('.');
+    return i > 0 ? name.substring(0, i) : name;
+  }
+
+  // The name of the output file for inputFilename without its
+  // extension (.j or .class), which is written next to inputFilename
+
+  public static String outputName(String inputFilename) {
+    String name = new File(inputFilename).getName();
+    return inputFilename.substring(0, inputFilename.length() - name.length())
+           + classname(inputFilename);
+  }
+
+  private static boolean isIdentifier(String s) {
+    if (s.length() == 0 || ! Character.isJavaIdentifierStart(s.charAt(0)))
+      return false;
+    for (int i = 1; i < s.length(); i++)
+      if (! Character.isJavaIdentifierPart(s.charAt(i)))
+        return false;
+    return true;
+  }
+
+  public void setOptimising(boolean optimising) {
+    this.optimising = optimising;
+  }
+
+  public void setPeephole(Peephole peephole) {
+    this.peephole = peephole;
+  }
+
+  public void setRotatingLoops(boolean rotatingLoops) {
+    this.rotatingLoops = rotatingLoops;
+  }
+
+  public void setStaticMethods(boolean staticMethods) {
+    this.staticMethods = staticMethods;
+  }
+
+  public void setWritingJasmin(boolean writingJasmin) {
+    this.writingJasmin = writingJasmin;
+  }
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  public void setKeepingClassFile(boolean keepingClassFile) {
+    this.keepingClassFile = keepingClassFile;
+  }
+
+  public String getClassname() {
+    return classname;
+  }
+
+  // the class file generated by gen (if it is kept in memory)
+
+  public byte[] getClassFile() {
+    return classFileBytes;
+  }
+
+  public long getInstructionCount() {
+    return instructions;
   }
 
   // PRE: ast must be a Program node
 
   public final void gen(AST ast) {
+    if (! isIdentifier(classname))
+      throw new CodeGenException("Error: the class name " + classname
+                                 + " (from the name of the file) is not a Java identifier");
+    code = new CodeBuffer();
+    if (writingJasmin) {
+      try {
+        FileChannel channel = FileChannel.open(Paths.get(outputFilename + ".j"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        jasmin = new PrintWriter(new BufferedWriter(Channels.newWriter(channel, "UTF-8")));
+      } catch (IOException e) {
+        throw new CodeGenException("Error opening object file: " + e);
+      }
+    } else
+      classFile = new ClassFileWriter();
+
     ast.visit(this, null); 
-    JVM.dump(classname + ".j");
+    flush();
+
+    if (writingJasmin) {
+      jasmin.close();
+      if (jasmin.checkError())
+        throw new CodeGenException("Error writing object file: " + outputFilename + ".j");
+    } else if (keepingClassFile)
+      classFileBytes = classFile.toByteArray();
+    else
+      classFile.write(outputFilename + ".class");
+    jasmin = null;
+    classFile = null;
+  }
+
+  // Optimises the code generated since the last flush, passes it to
+  // the output and starts a new buffer. The optimisations work on one
+  // method at a time, so the result is the same however the code is
+  // split.
+
+  private void flush() {
+    if (peephole != null)
+      peephole.optimise(code);
+    if (optimising) {
+      FlowGraph.optimise(code);
+      if (peephole != null)
+        peephole.optimise(code);
+    }
+    for (int i = 0; i < code.size(); i++)
+      if (JVM.isInstruction(code.op(i)))
+        instructions++;
+    if (writingJasmin)
+      code.write(jasmin);
+    else
+      classFile.add(code);
+    code = new CodeBuffer();
   }
 
   private void print(AST ast) {
@@ -57,9 +238,12 @@ public final class Emitter implements Visitor {
          it to handle all array-related declarations and initialisations.
       **/ 
 
+    if (optimising)
+      inliner = new Inliner(ast);
+
     // Generates the default constructor initialiser 
-    emit(JVM.CLASS, "public", classname);
-    emit(JVM.SUPER, "java/lang/Object");
+    emit(JVM.CLASS + " public " + classname);
+    emit(JVM.SUPER + " java/lang/Object");
 
     emit("");
 
@@ -72,7 +256,7 @@ public final class Emitter implements Visitor {
       DeclList dlAST = (DeclList) list;
       if (dlAST.D instanceof GlobalVarDecl) {
         GlobalVarDecl vAST = (GlobalVarDecl) dlAST.D;
-        emit(JVM.STATIC_FIELD, vAST.I.spelling, VCtoJavaType(vAST.T));
+        emit(JVM.STATIC_FIELD + " " + vAST.I.spelling + " " + VCtoJavaType(vAST.T));
       }
       list = dlAST.DL;
     }
@@ -94,7 +278,12 @@ public final class Emitter implements Visitor {
       DeclList dlAST = (DeclList) list;
       if (dlAST.D instanceof GlobalVarDecl) {
         GlobalVarDecl vAST = (GlobalVarDecl) dlAST.D;
-        if (!vAST.E.isEmptyExpr()) {
+        if (vAST.T.isArrayType()) {
+          // as for a local array (see visitLocalVarDecl)
+          ((ArrayType) vAST.T).E.visit(this, frame);
+          emit(JVM.NEWARRAY, arrayType(((ArrayType) vAST.T).T));
+          vAST.E.visit(this, frame);
+        } else if (!vAST.E.isEmptyExpr()) {
           vAST.E.visit(this, frame);
         } else {
           if (vAST.T.equals(StdEnvironment.floatType))
@@ -111,11 +300,11 @@ public final class Emitter implements Visitor {
    
     emit("");
     emit("; set limits used by this method");
-    emit(JVM.LIMIT, "locals", frame.getNewIndex());
+    emit(JVM.LIMIT_LOCALS, frame.getNewIndex());
 
-    emit(JVM.LIMIT, "stack", frame.getMaximumStackSize());
+    emit(JVM.LIMIT_STACK, frame.getMaximumStackSize());
     emit(JVM.RETURN);
-    emit(JVM.METHOD_END, "method");
+    emit(JVM.METHOD_END);
 
     emit("");
 
@@ -123,13 +312,84 @@ public final class Emitter implements Visitor {
 
     emit("; standard constructor initializer ");
     emit(JVM.METHOD_START, "public <init>()V");
-    emit(JVM.LIMIT, "stack 1");
-    emit(JVM.LIMIT, "locals 1");
-    emit(JVM.ALOAD_0);
+    emit(JVM.LIMIT_STACK, 1);
+    emit(JVM.LIMIT_LOCALS, 1);
+    emit(JVM.ALOAD, 0);
     emit(JVM.INVOKESPECIAL, "java/lang/Object/<init>()V");
     emit(JVM.RETURN);
-    emit(JVM.METHOD_END, "method");
-    return ast.FL.visit(this, o);
+    emit(JVM.METHOD_END);
+    if (streaming)
+      flush();
+
+    if (parallelism > 1) {
+      emitFuncDecls(ast);
+      return null;
+    }
+
+    // (iteratively, as a program may have thousands of functions)
+    list = ast.FL;
+    while (!list.isEmpty()) {
+      DeclList dlAST = (DeclList) list;
+      dlAST.D.visit(this, o);
+      list = dlAST.DL;
+    }
+    return null;
+  }
+
+  // Generates the methods of the VC functions on a pool of threads.
+  // Every function is translated by its own Emitter into its own
+  // CodeBuffer, and the buffers are appended to the code in the order
+  // of the functions in the program. Since the translation of a
+  // function depends only on its own Frame, the code is the same as
+  // when the functions are translated one after another.
+
+  private void emitFuncDecls(Program ast) {
+    ArrayList<Future<CodeBuffer>> methods = new ArrayList<Future<CodeBuffer>>();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    List list = ast.FL;
+    while (! list.isEmpty()) {
+      DeclList dlAST = (DeclList) list;
+      if (dlAST.D instanceof FuncDecl) {
+        final FuncDecl fAST = (FuncDecl) dlAST.D;
+        methods.add(pool.submit(new Callable<CodeBuffer>() {
+          public CodeBuffer call() {
+            Emitter emitter = worker();
+            fAST.visit(emitter, null);
+            return emitter.code;
+          }
+        }));
+      }
+      list = dlAST.DL;
+    }
+
+    try {
+      for (Future<CodeBuffer> method : methods) {
+        code.append(method.get());
+        if (streaming)
+          flush();
+      }
+    } catch (InterruptedException e) {
+      throw new CodeGenException("Error generating code: " + e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CodeGenException)
+        throw (CodeGenException) e.getCause();
+      throw new CodeGenException("Error generating code: " + e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // an Emitter with the same options (and inliner) as this one that
+  // translates into a new CodeBuffer
+
+  private Emitter worker() {
+    Emitter emitter = new Emitter(inputFilename, errorReporter);
+    emitter.optimising = optimising;
+    emitter.inliner = inliner;
+    emitter.rotatingLoops = rotatingLoops;
+    emitter.staticMethods = staticMethods;
+    emitter.code = new CodeBuffer();
+    return emitter;
   }
 
   // Statements
@@ -141,10 +401,24 @@ public final class Emitter implements Visitor {
   }
 
   public Object visitExprStmt(ExprStmt ast, Object o) {
-    ast.E.visit(this, o);
+    emitDiscarded(ast.E, (Frame) o);
     return null;
   }
 
+  // Evaluates an expression whose value is not used (an expression
+  // statement, or E1 or E3 of a for loop) and discards the value of
+  // an expression such as f(...) or a + b. (An assignment leaves no
+  // value in these places; see visitAssignExpr.)
+
+  private void emitDiscarded(Expr e, Frame frame) {
+    e.visit(this, frame);
+    if (! (e instanceof AssignExpr || e.isEmptyExpr()
+           || e.type == null || e.type.isVoidType())) {
+      emit(JVM.POP);
+      frame.pop();
+    }
+  }
+
   public Object visitCompoundStmt(CompoundStmt ast, Object o) {
     Frame frame = (Frame) o; 
 
@@ -153,27 +427,33 @@ public final class Emitter implements Visitor {
     frame.scopeStart.push(scopeStart);
     frame.scopeEnd.push(scopeEnd);
    
-    emit(scopeStart + ":");
-    if (ast.parent instanceof FuncDecl) {
+    emitLabel(scopeStart);
+    if (ast.parent instanceof FuncDecl && frame.inlineExits.isEmpty()) {
+      frame.entryLabel = scopeStart;
       if (((FuncDecl) ast.parent).I.spelling.equals("main")) {
-        emit(JVM.VAR, "0 is argv [Ljava/lang/String; from " + (String) frame.scopeStart.peek() + " to " +  (String) frame.scopeEnd.peek());
-        emit(JVM.VAR, "1 is vc$ L" + classname + "; from " + (String) frame.scopeStart.peek() + " to " +  (String) frame.scopeEnd.peek());
+        emitVAR(0, "argv [Ljava/lang/String;", frame);
+      }
+      if (staticMethods) {
+        // no vc$ and no "this"
+        ((FuncDecl) ast.parent).PL.visit(this, o);
+      } else if (((FuncDecl) ast.parent).I.spelling.equals("main")) {
+        emitVAR(1, "vc$ L" + classname + ";", frame);
         // Generate code for the initialiser vc$ = new classname();
         emit(JVM.NEW, classname);
         emit(JVM.DUP);
         frame.push(2);
-        emit("invokenonvirtual", classname + "/<init>()V");
+        emit(JVM.INVOKESPECIAL, classname + "/<init>()V");
         frame.pop();
-        emit(JVM.ASTORE_1);
+        emit(JVM.ASTORE, 1);
         frame.pop();
       } else {
-        emit(JVM.VAR, "0 is this L" + classname + "; from " + (String) frame.scopeStart.peek() + " to " +  (String) frame.scopeEnd.peek());
+        emitVAR(0, "this L" + classname + ";", frame);
         ((FuncDecl) ast.parent).PL.visit(this, o);
       }
     }
     ast.DL.visit(this, o);
     ast.SL.visit(this, o);
-    emit(scopeEnd + ":");
+    emitLabel(scopeEnd);
 
     frame.scopeStart.pop();
     frame.scopeEnd.pop();
@@ -190,10 +470,26 @@ public final class Emitter implements Visitor {
   must be translated into a RETURN rather than IRETURN instruction.
 */
 
-     if (frame.isMain())  {
+     if (! frame.inlineExits.isEmpty()) {
+       // in the body of an inlined function; the result (if any) is
+       // left on the operand stack at the exit of the inlined code
+       if (! ast.E.isEmptyExpr()) {
+         ast.E.visit(this, o);
+         frame.pop();
+       }
+       emit(JVM.GOTO, frame.inlineExits.peek());
+       return null;
+     }
+     else if (frame.isMain())  {
         emit(JVM.RETURN);
         return null;
      }
+     else if (ast.E.isEmptyExpr()) {
+       emit(JVM.RETURN);
+     }
+     else if (optimising && isSelfTailCall(ast.E, frame)) {
+       emitSelfTailCall((CallExpr) ast.E, frame);
+     }
      else {
        ast.E.visit(this, o);
        if (ast.E.type.isFloatType())
@@ -207,19 +503,75 @@ public final class Emitter implements Visitor {
          
   }
 
+  // In return f(...), the call to f is in tail position. If f is the
+  // function being compiled, the call is replaced by assigning the
+  // arguments to the parameters of f and jumping back to its entry.
+  // Hence, tail-recursive functions run in constant stack space.
+
+  private boolean isSelfTailCall(Expr e, Frame frame) {
+    return e instanceof CallExpr && ((CallExpr) e).I.decl == frame.function;
+  }
+
+  private void emitSelfTailCall(CallExpr ast, Frame frame) {
+    ast.AL.visit(this, frame);
+
+    // The arguments are on the operand stack with the last on top
+    ArrayList<ParaDecl> paras = parameters(frame.function);
+    for (int i = paras.size() - 1; i >= 0; i--) {
+      emitSTORE(paras.get(i).T, frame.getIndex(paras.get(i)));
+      frame.pop();
+    }
+    emit(JVM.GOTO, frame.entryLabel);
+  }
+
+  // Inlines a call to a function f chosen by the inliner. The
+  // parameters and local variables of f are given new indices in the
+  // caller's frame, and every return in f jumps to the end of the
+  // inlined code, where the result (if any) is on the operand stack.
+
+  private void emitInlinedCall(CallExpr ast, FuncDecl fAST, Frame frame) {
+    frame.inlineBudget -= inliner.size(fAST);
+
+    ast.AL.visit(this, frame);
+    ArrayList<ParaDecl> paras = parameters(fAST);
+    for (ParaDecl p : paras)
+      frame.getNewIndex(p);
+    for (int i = paras.size() - 1; i >= 0; i--) {
+      emitSTORE(paras.get(i).T, frame.getIndex(paras.get(i)));
+      frame.pop();
+    }
+
+    String exitLabel = frame.getNewLabel();
+    frame.inlineExits.push(exitLabel);
+    fAST.S.visit(this, frame);
+    frame.inlineExits.pop();
+    emitLabel(exitLabel);
+
+    if (! fAST.T.isVoidType())
+      frame.push();
+  }
+
+  private ArrayList<ParaDecl> parameters(FuncDecl fAST) {
+    ArrayList<ParaDecl> paras = new ArrayList<ParaDecl>();
+    List fpl = fAST.PL;
+    while (! fpl.isEmpty()) {
+      paras.add(((ParaList) fpl).P);
+      fpl = ((ParaList) fpl).PL;
+    }
+    return paras;
+  }
+
   public Object visitIfStmt(IfStmt ast, Object o) {
     Frame frame = (Frame) o;
 
     String falseLabel = frame.getNewLabel();
     String nextLabel = frame.getNewLabel();
-    ast.E.visit(this, o);
-    frame.pop();
-    emit(JVM.IFEQ, falseLabel);
+    emitCondition(ast.E, false, falseLabel, frame);
     ast.S1.visit(this, o);
-    emit("goto", nextLabel);
-    emit(falseLabel + ":");
+    emit(JVM.GOTO, nextLabel);
+    emitLabel(falseLabel);
     ast.S2.visit(this, o);
-    emit(nextLabel + ":");
+    emitLabel(nextLabel);
 
     return null;
 
@@ -232,45 +584,123 @@ public final class Emitter implements Visitor {
     frame.brkStack.push(breakLabel);
     frame.conStack.push(continueLable);
 
-    emit(continueLable + ":");
-    ast.E.visit(this, o);
-    emit(JVM.IFEQ, breakLabel);
-    frame.pop();
-    ast.S.visit(this, o);
-    emit(JVM.GOTO, continueLable);
-    emit(breakLabel + ":");
+    if (rotatingLoops) {
+      // guard; body: S; continue: if (E) goto body; break:
+      String bodyLabel = frame.getNewLabel();
+      emitCondition(ast.E, false, breakLabel, frame);
+      emitLabel(bodyLabel);
+      ast.S.visit(this, o);
+      emitLabel(continueLable);
+      emitCondition(ast.E, true, bodyLabel, frame);
+    } else {
+      emitLabel(continueLable);
+      emitCondition(ast.E, false, breakLabel, frame);
+      ast.S.visit(this, o);
+      emit(JVM.GOTO, continueLable);
+    }
+    emitLabel(breakLabel);
+
+    frame.brkStack.pop();
+    frame.conStack.pop();
     return null;
   }
 
   public Object visitForStmt(ForStmt ast, Object o) {
     Frame frame = (Frame) o;
-    String continueLable = frame.getNewLabel();
+    String condLabel = frame.getNewLabel();
+    String continueLabel = frame.getNewLabel();
     String breakLabel = frame.getNewLabel();
-    frame.brkStack.push(breakLabel);
-    frame.conStack.push(continueLable);
 
-    emit(continueLable + ":");
-    ast.E1.visit(this, o);
-    ast.E2.visit(this, o);
-    emit(JVM.IFEQ, breakLabel);
-    frame.pop();
-    ast.E3.visit(this, o);
+    emitDiscarded(ast.E1, frame);
+
+    // Derived induction expressions are kept in temporaries that are
+    // initialised here and updated together with the induction variable
+    ArrayList<InductionVariables.Derived> derived;
+    if (optimising)
+      derived = InductionVariables.analyse(ast);
+    else
+      derived = new ArrayList<InductionVariables.Derived>();
+    for (InductionVariables.Derived d : derived) {
+      forgetCommonExprsIn(d.expr, frame);
+      // The saved values of common subexpressions computed in the
+      // loop are not available yet
+      HashMap<Expr, Expr> commonExprs = frame.commonExprs;
+      frame.commonExprs = new HashMap<Expr, Expr>();
+      d.expr.visit(this, o);
+      frame.commonExprs = commonExprs;
+      d.index = frame.getNewIndex();
+      emitISTORE(d.index);
+      frame.pop();
+      if (d.step == 1 && d.factors.size() == 1)
+        d.stepIndex = frame.getIndex(d.factors.get(0));
+      else if (! d.factors.isEmpty()) {
+        emitICONST(d.step);
+        frame.push();
+        for (Decl f : d.factors) {
+          emitILOAD(frame.getIndex(f));
+          frame.push();
+          emit(JVM.IMUL);
+          frame.pop();
+        }
+        d.stepIndex = frame.getNewIndex();
+        emitISTORE(d.stepIndex);
+        frame.pop();
+      }
+      frame.cachedExprs.put(d.expr, d.index);
+    }
+
+    frame.brkStack.push(breakLabel);
+    frame.conStack.push(continueLabel);
+
+    // With rotated loops, E2 is tested before the first iteration
+    // and after E3, and condLabel labels the body instead.
+    if (rotatingLoops && ! ast.E2.isEmptyExpr())
+      emitCondition(ast.E2, false, breakLabel, frame);
+    emitLabel(condLabel);
+    if (! rotatingLoops && ! ast.E2.isEmptyExpr())
+      emitCondition(ast.E2, false, breakLabel, frame);
     ast.S.visit(this, o);
-    emit(JVM.GOTO, continueLable);
-    emit(breakLabel + ":");
-    return null;
+    emitLabel(continueLabel);
+    emitDiscarded(ast.E3, frame);
+    for (InductionVariables.Derived d : derived) {
+      if (d.stepIndex < 0 && d.step >= -32768 && d.step <= 32767) {
+        emitIINC(d.index, d.step, frame);
+        continue;
+      }
+      emitILOAD(d.index);
+      frame.push();
+      if (d.stepIndex >= 0)
+        emitILOAD(d.stepIndex);
+      else
+        emitICONST(d.step);
+      frame.push();
+      emit(JVM.IADD);
+      frame.pop();
+      emitISTORE(d.index);
+      frame.pop();
+    }
+    if (rotatingLoops && ! ast.E2.isEmptyExpr())
+      emitCondition(ast.E2, true, condLabel, frame);
+    else
+      emit(JVM.GOTO, condLabel);
+    emitLabel(breakLabel);
 
+    frame.brkStack.pop();
+    frame.conStack.pop();
+    for (InductionVariables.Derived d : derived)
+      frame.cachedExprs.remove(d.expr);
+    return null;
   }
 
   public Object visitBreakStmt(BreakStmt ast, Object o) {
     Frame frame = (Frame) o;
-    emit(JVM.GOTO, frame.brkStack.pop());
+    emit(JVM.GOTO, frame.brkStack.peek());
     return null;
   }
 
   public Object visitContinueStmt(ContinueStmt ast, Object o) {
     Frame frame = (Frame) o;
-    emit(JVM.GOTO, frame.conStack.pop());
+    emit(JVM.GOTO, frame.conStack.peek());
     return null;
   }
 
@@ -298,35 +728,35 @@ public final class Emitter implements Visitor {
 
     if (fname.equals("getInt")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System.getInt()I");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/getInt()I");
       frame.push();
     } else if (fname.equals("putInt")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System.putInt(I)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putInt(I)V");
       frame.pop();
     } else if (fname.equals("putIntLn")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putIntLn(I)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putIntLn(I)V");
       frame.pop();
     } else if (fname.equals("getFloat")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/getFloat()F");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/getFloat()F");
       frame.push();
     } else if (fname.equals("putFloat")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putFloat(F)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putFloat(F)V");
       frame.pop();
     } else if (fname.equals("putFloatLn")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putFloatLn(F)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putFloatLn(F)V");
       frame.pop();
     } else if (fname.equals("putBool")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putBool(Z)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putBool(Z)V");
       frame.pop();
     } else if (fname.equals("putBoolLn")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putBoolLn(Z)V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putBoolLn(Z)V");
       frame.pop();
     } else if (fname.equals("putString")) {
       ast.AL.visit(this, o);
@@ -338,17 +768,27 @@ public final class Emitter implements Visitor {
       frame.pop();
     } else if (fname.equals("putLn")) {
       ast.AL.visit(this, o); // push args (if any) into the op stack
-      emit("invokestatic VC/lang/System/putLn()V");
+      emit(JVM.INVOKESTATIC, "VC/lang/System/putLn()V");
     } else { // programmer-defined functions
 
       FuncDecl fAST = (FuncDecl) ast.I.decl;
 
+      if (optimising && inliner.shouldInline(fAST, frame)) {
+        emitInlinedCall(ast, fAST, frame);
+        return null;
+      }
+
       // all functions except main are assumed to be instance methods
-      if (frame.isMain()) 
-        emit("aload_1"); // vc.funcname(...)
-      else
-        emit("aload_0"); // this.funcname(...)
-      frame.push();
+      // (unless they are static methods)
+      if (staticMethods)
+        ;
+      else if (frame.isMain()) {
+        emit(JVM.ALOAD, 1); // vc.funcname(...)
+        frame.push();
+      } else {
+        emit(JVM.ALOAD, 0); // this.funcname(...)
+        frame.push();
+      }
 
       ast.AL.visit(this, o);
     
@@ -359,8 +799,10 @@ public final class Emitter implements Visitor {
       // by traversing its field PL.
 
       StringBuffer argsTypes = new StringBuffer("");
+      int numArgs = 0;
       List fpl = fAST.PL;
       while (! fpl.isEmpty()) {
+        numArgs++;
          if(((ParaList) fpl).P.T.isArrayType()) {
            if (((ArrayType)((ParaList) fpl).P.T).T.isBooleanType()) {
              argsTypes.append("[Z");
@@ -382,8 +824,13 @@ public final class Emitter implements Visitor {
         fpl = ((ParaList) fpl).PL;
       }
       
-      emit("invokevirtual", classname + "/" + fname + "(" + argsTypes + ")" + retType);
-      frame.pop(argsTypes.length() + 1);
+      if (staticMethods) {
+        emit(JVM.INVOKESTATIC, classname + "/" + fname + "(" + argsTypes + ")" + retType);
+        frame.pop(numArgs);
+      } else {
+        emit(JVM.INVOKEVIRTUAL, classname + "/" + fname + "(" + argsTypes + ")" + retType);
+        frame.pop(numArgs + 1);
+      }
 
       if (! retType.equals("V"))
         frame.push();
@@ -392,34 +839,46 @@ public final class Emitter implements Visitor {
   }
 
   public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+    Frame frame = (Frame) o;
+    if (! emitCachedExpr(ast, frame))
+      emitUnaryExpr(ast, frame);
+    emitSavedExpr(ast, frame);
+    return null;
+  }
+
+  private void emitUnaryExpr(UnaryExpr ast, Object o) {
     Frame frame = (Frame) o;
     String op = ast.O.spelling;
-    String opcode;
+    if (op.equals("i!")) {
+      emitBooleanValue(ast, frame);
+      return;
+    }
     ast.E.visit(this, o);
-    if (op.equals("!")) {
-        opcode = JVM.IFNE;
-        String falseLabel = frame.getNewLabel();
-        String nextLabel = frame.getNewLabel();
-        emit(opcode, falseLabel);
-        emit(JVM.ICONST_1);
-        emit("goto", nextLabel);
-        emit(falseLabel + ":");
-        emit(JVM.ICONST_0);
-        emit(nextLabel + ":");
-    } else if (op.equals("i-")) { emit(JVM.INEG); }
+    if (op.equals("i-")) { emit(JVM.INEG); }
     else if (op.equals("f-")) {emit(JVM.FNEG);}
     else if (op.equals("i2f")) { emit(JVM.I2F); }
+  }
+
+  public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+    Frame frame = (Frame) o;
 
+    if (! emitCachedExpr(ast, frame)
+        && ! (optimising && emitStrengthReduced(ast, frame)))
+      emitBinaryExpr(ast, frame);
+    emitSavedExpr(ast, frame);
     return null;
   }
 
-  public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+  private void emitBinaryExpr(BinaryExpr ast, Object o) {
     Frame frame = (Frame) o;
 
     String op = ast.O.spelling;
 
-    String falseLabel = frame.getNewLabel();
-    String nextLabel = frame.getNewLabel();
+    if (isComparison(op) || op.equals("i&&") || op.equals("i||")) {
+      emitBooleanValue(ast, frame);
+      return;
+    }
+
     ast.E1.visit(this, o);
 
     switch(op) {
@@ -463,56 +922,9 @@ public final class Emitter implements Visitor {
         emit(JVM.FDIV);
         frame.pop();
         break;
-      case "f>=":
-      case "f>":
-      case "f<=":
-      case "f<":
-      case "f==":
-      case "f!=":
-        ast.E2.visit(this, o);
-        emitFCMP(op, frame);
-        break;
-
-      case "i>=":
-      case "i>":
-      case "i<=":
-      case "i<":
-      case "i==":
-      case "i!=":
-        ast.E2.visit(this, o);
-        emitIF_ICMPCOND(op, frame);
-        break;
-
-      case "i&&":
-        emit(JVM.IFEQ, falseLabel);
-        frame.pop();
-        ast.E2.visit(this, o);
-        emit(JVM.IFEQ, falseLabel);
-        frame.pop();
-        emit(JVM.ICONST_1);
-        emit("goto", nextLabel);
-        emit(falseLabel + ":");
-        emit(JVM.ICONST_0);
-        frame.push();
-        emit(nextLabel + ":");
-        break;
-      case "i||":
-        emit(JVM.IFNE, falseLabel);
-        frame.pop(2);
-        ast.E2.visit(this, o);
-        emit(JVM.IFNE, falseLabel);
-        frame.pop(2);
-        emit(JVM.ICONST_0);
-        emit("goto", nextLabel);
-        emit(falseLabel + ":");
-        emit(JVM.ICONST_1);
-        frame.push();
-        emit(nextLabel + ":");
       default:
         break;
     }
-
-    return null;
   }
 
   public Object visitInitExpr(InitExpr ast, Object o) {
@@ -539,17 +951,26 @@ public final class Emitter implements Visitor {
     } else if (ast.E.type.isBooleanType()) {
       emit(JVM.BASTORE);
     }
-    frame.pop(2);
+    frame.pop(3);
     ast.EL.visit(this, o);
     return null;
   }
 
   public Object visitArrayExpr(ArrayExpr ast, Object o) {
+    Frame frame = (Frame) o;
+    if (! emitCachedExpr(ast, frame))
+      emitArrayExpr(ast, frame);
+    emitSavedExpr(ast, frame);
+    return null;
+  }
+
+  private void emitArrayExpr(ArrayExpr ast, Object o) {
     Frame frame = (Frame) o;
     Decl decl = (Decl) ((SimpleVar) ast.V).I.decl;
     if (decl instanceof GlobalVarDecl) {
       emitGETSTATIC(VCtoJavaType(decl.T), ((SimpleVar) ast.V).I.spelling);
-    } else emitALOAD(decl.index);
+    } else emitALOAD(frame.getIndex(decl));
+    frame.push();
 
     ast.E.visit(this, o);
     if (ast.type.isFloatType()) {
@@ -559,8 +980,7 @@ public final class Emitter implements Visitor {
     } else if (ast.type.isBooleanType()) {
       emit(JVM.BALOAD);
     }
-    frame.push();
-    return null;
+    frame.pop();
   }
 
   public Object visitVarExpr(VarExpr ast, Object o) {
@@ -571,13 +991,35 @@ public final class Emitter implements Visitor {
   public Object visitAssignExpr(AssignExpr ast, Object o) {
     Frame frame = (Frame) o;
 
+    // The value of an assignment is left on the operand stack unless
+    // the assignment is used as a statement
+    boolean valueNeeded = ! (ast.parent instanceof ExprStmt
+        || (ast.parent instanceof ForStmt && ((ForStmt) ast.parent).E2 != ast));
+
+    Integer increment = increment(ast, frame);
+    if (increment != null) {
+      // v = v + c  =>  iinc v c
+      int index = frame.getIndex(InductionVariables.localVar(ast.E1));
+      emitIINC(index, increment, frame);
+      if (valueNeeded) {
+        emitILOAD(index);
+        frame.push();
+      }
+      return null;
+    }
+
     if (ast.E1 instanceof ArrayExpr) {
       Decl decl1 = (Decl) ((SimpleVar)((ArrayExpr) ast.E1).V).I.decl;
       if (decl1 instanceof GlobalVarDecl) {
         emitGETSTATIC(VCtoJavaType(decl1.T), ((SimpleVar) ((ArrayExpr) ast.E1).V).I.spelling);
-      } else emitALOAD(decl1.index);
+      } else emitALOAD(frame.getIndex(decl1));
+      frame.push();
       ((ArrayExpr) ast.E1).E.visit(this, o);
       ast.E2.visit(this, o);
+      if (valueNeeded) {
+        emit(JVM.DUP_X2);
+        frame.push();
+      }
       if (ast.E1.type.isFloatType()) {
         emit(JVM.FASTORE);
       } else if (ast.E1.type.isIntType()) {
@@ -585,28 +1027,57 @@ public final class Emitter implements Visitor {
       } else if (ast.E1.type.isBooleanType()) {
         emit(JVM.BASTORE);
       }
+      frame.pop(2);
     } else {
       ast.E2.visit(this, o);
+      if (valueNeeded) {
+        emit(JVM.DUP);
+        frame.push();
+      }
       SimpleVar var1 = (SimpleVar) (((VarExpr) ast.E1).V);
       if (var1.I.decl instanceof GlobalVarDecl) {
         emitPUTSTATIC(VCtoJavaType(var1.type), var1.I.spelling);
       } else {
-        if ((ast.E1.type.isFloatType())) emitFSTORE(var1.I);
-        else emitISTORE(var1.I);
+        if ((ast.E1.type.isFloatType())) emitFSTORE(var1.I, frame);
+        else emitISTORE(var1.I, frame);
       }
 
     }
     frame.pop();
 
-    if (ast.parent instanceof AssignExpr) {
-      emit(JVM.DUP);
-      frame.push();
-    }
-
-
     return null;
   }
 
+  // Returns c if ast is v = v + c, v = c + v or v = v - c (giving -c),
+  // where v is an int local variable (or parameter) and c is an int
+  // literal such that iinc can add c to v, and null otherwise. The
+  // value of v + c must not be needed elsewhere as a common
+  // subexpression or induction expression.
+
+  private Integer increment(AssignExpr ast, Frame frame) {
+    Decl v = InductionVariables.localVar(ast.E1);
+    if (v == null || ! v.T.isIntType() || ! (ast.E2 instanceof BinaryExpr)
+        || frame.commonDefs.contains(ast.E2) || frame.commonExprs.containsKey(ast.E2)
+        || frame.cachedExprs.containsKey(ast.E2))
+      return null;
+
+    BinaryExpr e = (BinaryExpr) ast.E2;
+    String op = e.O.spelling;
+    Integer c = null;
+    if (op.equals("i+")) {
+      if (InductionVariables.localVar(e.E1) == v)
+        c = InductionVariables.intLiteral(e.E2);
+      else if (InductionVariables.localVar(e.E2) == v)
+        c = InductionVariables.intLiteral(e.E1);
+    } else if (op.equals("i-") && InductionVariables.localVar(e.E1) == v) {
+      c = InductionVariables.intLiteral(e.E2);
+      if (c != null)
+        c = -c;
+    }
+    if (c == null || c < -32768 || c > 32767)
+      return null;
+    return c;
+  }
 
   public Object visitEmptyExpr(EmptyExpr ast, Object o) {
     return null;
@@ -646,6 +1117,10 @@ public final class Emitter implements Visitor {
 
   public Object visitFuncDecl(FuncDecl ast, Object o) {
 
+    Events.Function event = new Events.Function();
+    event.begin();
+    int first = code.size();
+
     Frame frame; 
 
     if (ast.I.spelling.equals("main")) {
@@ -661,15 +1136,18 @@ public final class Emitter implements Visitor {
       // appears before all local variable declarations.
       // (1) Reserve 1 for this object reference.
 
-      frame.getNewIndex(); 
+      if (! staticMethods)
+        frame.getNewIndex(); 
 
     } else {
 
        frame = new Frame(false);
+       frame.function = ast;
 
       // all other programmer-defined functions are treated as if
-      // they were instance methods
-      frame.getNewIndex(); // reserve 0 for "this"
+      // they were instance methods (unless they are static methods)
+      if (! staticMethods)
+        frame.getNewIndex(); // reserve 0 for "this"
 
       String retType = VCtoJavaType(ast.T);
 
@@ -680,16 +1158,21 @@ public final class Emitter implements Visitor {
       StringBuffer argsTypes = new StringBuffer("");
       List fpl = ast.PL;
       while (! fpl.isEmpty()) {
-        if (((ParaList) fpl).P.T.equals(StdEnvironment.booleanType))
-          argsTypes.append("Z");         
-        else if (((ParaList) fpl).P.T.equals(StdEnvironment.intType))
-          argsTypes.append("I");         
-        else
-          argsTypes.append("F");         
+        argsTypes.append(VCtoJavaType(((ParaList) fpl).P.T));
         fpl = ((ParaList) fpl).PL;
       }
 
-      emit(JVM.METHOD_START, ast.I.spelling + "(" + argsTypes + ")" + retType);
+      emit(JVM.METHOD_START, (staticMethods ? "static " : "") + ast.I.spelling + "(" + argsTypes + ")" + retType);
+    }
+
+    // the code of the method starts here
+    int start = code.size();
+
+    if (optimising) {
+      frame.inlineBudget = inliner.budget(ast);
+      ValueNumbering vn = ValueNumbering.analyse(ast);
+      frame.commonExprs = vn.reuses;
+      frame.commonDefs = vn.defs;
     }
 
     ast.S.visit(this, frame);
@@ -710,12 +1193,36 @@ public final class Emitter implements Visitor {
     } else
       emit(JVM.NOP); 
 
+    // Reuse the local variable indices of dead variables. The indices
+    // of main's argv and vc$ and of "this" and the parameters are fixed.
+    int locals = frame.getNewIndex();
+    if (optimising) {
+      int fixed = frame.isMain() ? 1 : parameters(ast).size();
+      if (! staticMethods)
+        fixed++;
+      locals = SlotAllocator.allocate(code, start, code.size(), fixed);
+    }
+
     emit("");
     emit("; set limits used by this method");
-    emit(JVM.LIMIT, "locals", frame.getNewIndex());
+    emit(JVM.LIMIT_LOCALS, locals);
+
+    emit(JVM.LIMIT_STACK, frame.getMaximumStackSize());
+    emit(JVM.METHOD_END);
+
+    event.end();
+    if (event.shouldCommit()) {
+      event.file = inputFilename;
+      event.function = ast.I.spelling;
+      event.nodes = ASTNodes.count(ast, null);
+      for (int i = first; i < code.size(); i++)
+        if (JVM.isInstruction(code.op(i)))
+          event.instructions++;
+      event.commit();
+    }
 
-    emit(JVM.LIMIT, "stack", frame.getMaximumStackSize());
-    emit(".end method");
+    if (streaming)
+      flush();
 
     return null;
   }
@@ -727,33 +1234,28 @@ public final class Emitter implements Visitor {
 
   public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
     Frame frame = (Frame) o;
-    ast.index = frame.getNewIndex();
+    int index = frame.getNewIndex(ast);
     String T = VCtoJavaType(ast.T);
 
-    emit(JVM.VAR + " " + ast.index + " is " + ast.I.spelling + " " + T + " from " + (String) frame.scopeStart.peek() + " to " +  (String) frame.scopeEnd.peek());
-    if (!ast.E.isEmptyExpr()) {
-      if (ast.T.isArrayType()) {
-        ((ArrayType) ast.T).E.visit(this, o);
-        emit(JVM.NEWARRAY, ((ArrayType) ast.T).T.toString());
-        ast.E.visit(this, o);
-        emit(JVM.ASTORE + "_" + ast.index);
-      } else if (ast.T.equals(StdEnvironment.floatType)) {
+    emitVAR(index, ast.I.spelling + " " + T, frame);
+    if (ast.T.isArrayType()) {
+      ((ArrayType) ast.T).E.visit(this, o);
+      emit(JVM.NEWARRAY, arrayType(((ArrayType) ast.T).T));
+      ast.E.visit(this, o);
+      emitASTORE(index);
+      frame.pop();
+    } else if (!ast.E.isEmptyExpr()) {
+      if (ast.T.equals(StdEnvironment.floatType)) {
         // cannot call emitFSTORE(ast.I) since this I is not an
         // applied occurrence
         ast.E.visit(this, o);
-        if (ast.index >= 0 && ast.index <= 3)
-          emit(JVM.FSTORE + "_" + ast.index); 
-        else
-          emit(JVM.FSTORE, ast.index); 
+        emitFSTORE(index);
         frame.pop();
       } else {
         // cannot call emitISTORE(ast.I) since this I is not an
         // applied occurrence
         ast.E.visit(this, o);
-        if (ast.index >= 0 && ast.index <= 3)
-          emit(JVM.ISTORE + "_" + ast.index); 
-        else
-          emit(JVM.ISTORE, ast.index); 
+        emitISTORE(index);
         frame.pop();
       }
     }
@@ -771,10 +1273,10 @@ public final class Emitter implements Visitor {
 
   public Object visitParaDecl(ParaDecl ast, Object o) {
     Frame frame = (Frame) o;
-    ast.index = frame.getNewIndex();
+    int index = frame.getNewIndex(ast);
     String T = VCtoJavaType(ast.T);
 
-    emit(JVM.VAR + " " + ast.index + " is " + ast.I.spelling + " " + T + " from " + (String) frame.scopeStart.peek() + " to " +  (String) frame.scopeEnd.peek());
+    emitVAR(index, ast.I.spelling + " " + T, frame);
     return null;
   }
 
@@ -858,7 +1360,7 @@ public final class Emitter implements Visitor {
 
   public Object visitStringLiteral(StringLiteral ast, Object o) {
     Frame frame = (Frame) o;
-    emit(JVM.LDC, "\"" + ast.spelling + "\"");
+    code.append(JVM.LDC, code.string(ast.spelling), JVM.LDC_STRING);
     frame.push();
     return null;
   }
@@ -876,9 +1378,11 @@ public final class Emitter implements Visitor {
       emitGETSTATIC(VCtoJavaType(decl.T), ast.I.spelling);
     } else {
       if (decl.T.isFloatType()) {
-        emitFLOAD(decl.index);
+        emitFLOAD(frame.getIndex(decl));
       } else if (decl.T.isIntType() || decl.T.isBooleanType()) {
-        emitILOAD(decl.index);
+        emitILOAD(frame.getIndex(decl));
+      } else if (decl.T.isArrayType()) {
+        emitALOAD(frame.getIndex(decl));
       }
     }
     frame.push();
@@ -890,169 +1394,372 @@ public final class Emitter implements Visitor {
   // The following method appends an instruction directly into the JVM 
   // Code Store. It is called by all other overloaded emit methods.
 
+  // Directives (other than those with pseudo opcodes), comments and
+  // blank lines
+
   private void emit(String s) {
-    JVM.append(new Instruction(s)); 
+    code.append(JVM.TEXT, code.string(s));
+  }
+
+  private void emit(int op) {
+    code.append(op, 0);
   }
 
-  private void emit(String s1, String s2) {
-    emit(s1 + " " + s2);
+  private void emit(int op, int arg) {
+    code.append(op, arg);
   }
 
-  private void emit(String s1, int i) {
-    emit(s1 + " " + i);
+  // An instruction whose operand is a label or a string (or the
+  // .method directive)
+
+  private void emit(int op, String s) {
+    code.append(op, JVM.isBranch(op) ? JVM.label(s) : code.string(s));
   }
 
-  private void emit(String s1, float f) {
-    emit(s1 + " " + f);
+  private void emitLabel(String label) {
+    code.append(JVM.LABEL, JVM.label(label));
   }
 
-  private void emit(String s1, String s2, int i) {
-    emit(s1 + " " + s2 + " " + i);
+  // .var index is nameAndType in the current scope
+
+  private void emitVAR(int index, String nameAndType, Frame frame) {
+    code.append(JVM.VAR, index, code.string(nameAndType),
+               JVM.label(frame.scopeStart.peek()), JVM.label(frame.scopeEnd.peek()));
+  }
+
+  // Loads the value of ast if it is available in a local variable,
+  // either as a derived induction expression or as the saved value of
+  // a common subexpression computed earlier.
+
+  private boolean emitCachedExpr(Expr ast, Frame frame) {
+    Integer index = frame.cachedExprs.get(ast);
+    if (index == null && frame.commonExprs.containsKey(ast))
+      index = frame.savedExprs.get(frame.commonExprs.get(ast));
+    if (index == null)
+      return false;
+    if (ast.type.isFloatType())
+      emitFLOAD(index);
+    else
+      emitILOAD(index);
+    frame.push();
+    return true;
   }
 
-  private void emit(String s1, String s2, String s3) {
-    emit(s1 + " " + s2 + " " + s3);
+  // Drops the common subexpressions defined inside the derived
+  // induction expression e. As e is loaded from its temporary in the
+  // loop, they would be saved only once, at the loop entry, so the
+  // expressions reusing them are evaluated again instead.
+
+  private void forgetCommonExprsIn(Expr e, Frame frame) {
+    final HashSet<Expr> inside = new HashSet<Expr>();
+    e.visit(new ASTWalker() {
+      public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+        inside.add(ast);
+        return super.visitUnaryExpr(ast, o);
+      }
+      public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+        inside.add(ast);
+        return super.visitBinaryExpr(ast, o);
+      }
+      public Object visitArrayExpr(ArrayExpr ast, Object o) {
+        inside.add(ast);
+        return super.visitArrayExpr(ast, o);
+      }
+    }, null);
+    // the value of e itself is saved whenever it is loaded
+    inside.remove(e);
+    frame.commonDefs.removeAll(inside);
+    frame.commonExprs.values().removeAll(inside);
+  }
+
+  // Keeps a copy of the value of ast in a local variable if the value
+  // is reused later.
+
+  private void emitSavedExpr(Expr ast, Frame frame) {
+    if (! frame.commonDefs.contains(ast))
+      return;
+    Integer index = frame.savedExprs.get(ast);
+    if (index == null) {
+      index = frame.getNewIndex();
+      frame.savedExprs.put(ast, index);
+    }
+    emit(JVM.DUP);
+    frame.push();
+    if (ast.type.isFloatType())
+      emitFSTORE(index);
+    else
+      emitISTORE(index);
+    frame.pop();
   }
 
+  // Translates x * 2^k and 2^k * x into x << k and x / 2^k into
+  // x >> k (with a fix-up for negative x). Returns false if ast is
+  // not of any of these forms.
 
-  private void emitIF_ICMPCOND(String op, Frame frame) {
-    String opcode;
+  private boolean emitStrengthReduced(BinaryExpr ast, Frame frame) {
+    String op = ast.O.spelling;
+    if (op.equals("i*")) {
+      Expr x = ast.E1;
+      int k = log2(ast.E2);
+      if (k < 0) {
+        x = ast.E2;
+        k = log2(ast.E1);
+      }
+      if (k < 0)
+        return false;
+      x.visit(this, frame);
+      if (k > 0) {
+        emitICONST(k);
+        frame.push();
+        emit(JVM.ISHL);
+        frame.pop();
+      }
+      return true;
+    } else if (op.equals("i/")) {
+      int k = log2(ast.E2);
+      if (k < 0)
+        return false;
+      ast.E1.visit(this, frame);
+      if (k > 0) {
+        // x / 2^k rounds towards zero but x >> k rounds towards
+        // negative infinity. Hence, 2^k - 1 is added to a negative x
+        // first: (x + ((x >> 31) & (2^k - 1))) >> k
+        emit(JVM.DUP);
+        emitICONST(31);
+        frame.push(2);
+        emit(JVM.ISHR);
+        frame.pop();
+        emitICONST((1 << k) - 1);
+        frame.push();
+        emit(JVM.IAND);
+        frame.pop();
+        emit(JVM.IADD);
+        frame.pop();
+        emitICONST(k);
+        frame.push();
+        emit(JVM.ISHR);
+        frame.pop();
+      }
+      return true;
+    }
+    return false;
+  }
+
+  // returns k if e is the integer literal 2^k and -1 otherwise
+
+  private int log2(Expr e) {
+    Integer value = InductionVariables.intLiteral(e);
+    if (value == null || value <= 0 || (value & (value - 1)) != 0)
+      return -1;
+    return Integer.numberOfTrailingZeros(value);
+  }
+
+  // Jumping code for conditions. emitCondition emits code that jumps
+  // to label if ast evaluates to "when" and falls through otherwise.
+  // Comparisons, !, && and || are translated into branches (with
+  // short-circuit evaluation) instead of computing their 0/1 values.
+
+  private void emitCondition(Expr ast, boolean when, String label, Frame frame) {
+    String op = "";
+    if (ast instanceof BinaryExpr)
+      op = ((BinaryExpr) ast).O.spelling;
+    else if (ast instanceof UnaryExpr)
+      op = ((UnaryExpr) ast).O.spelling;
+
+    if (isComparison(op)) {
+      BinaryExpr e = (BinaryExpr) ast;
+      e.E1.visit(this, frame);
+      e.E2.visit(this, frame);
+      if (op.startsWith("i"))
+        emitIF_ICMPCOND(op, when, label, frame);
+      else
+        emitFCMP(op, when, label, frame);
+    } else if (op.equals("i!")) {
+      emitCondition(((UnaryExpr) ast).E, ! when, label, frame);
+    } else if (op.equals("i&&") || op.equals("i||")) {
+      BinaryExpr e = (BinaryExpr) ast;
+      // E1 decides the result if it is false (&&) or true (||)
+      boolean decides = op.equals("i||");
+      if (when == decides) {
+        emitCondition(e.E1, when, label, frame);
+        emitCondition(e.E2, when, label, frame);
+      } else {
+        String skipLabel = frame.getNewLabel();
+        emitCondition(e.E1, decides, skipLabel, frame);
+        emitCondition(e.E2, when, label, frame);
+        emitLabel(skipLabel);
+      }
+    } else if (ast instanceof BooleanExpr) {
+      if (((BooleanExpr) ast).BL.spelling.equals("true") == when)
+        emit(JVM.GOTO, label);
+    } else {
+      ast.visit(this, frame);
+      emit(when ? JVM.IFNE : JVM.IFEQ, label);
+      frame.pop();
+    }
+  }
+
+  // Computes the 0/1 value of a condition with jumping code
+
+  private void emitBooleanValue(Expr ast, Frame frame) {
+    String falseLabel = frame.getNewLabel();
+    String nextLabel = frame.getNewLabel();
+
+    emitCondition(ast, false, falseLabel, frame);
+    emit(JVM.ICONST_1);
+    frame.push();
+    emit(JVM.GOTO, nextLabel);
+    emitLabel(falseLabel);
+    emit(JVM.ICONST_0);
+    emitLabel(nextLabel);
+  }
+
+  private static boolean isComparison(String op) {
+    if (! (op.startsWith("i") || op.startsWith("f")))
+      return false;
+    op = op.substring(1);
+    return op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=")
+      || op.equals("==") || op.equals("!=");
+  }
+
+  // Jumps to label if the comparison op of the two ints on the operand
+  // stack is "when"
+
+  private void emitIF_ICMPCOND(String op, boolean when, String label, Frame frame) {
+    int opcode;
     if (op.equals("i!="))
-      opcode = JVM.IF_ICMPNE;
+      opcode = when ? JVM.IF_ICMPNE : JVM.IF_ICMPEQ;
     else if (op.equals("i=="))
-      opcode = JVM.IF_ICMPEQ;
+      opcode = when ? JVM.IF_ICMPEQ : JVM.IF_ICMPNE;
     else if (op.equals("i<"))
-      opcode = JVM.IF_ICMPLT;
+      opcode = when ? JVM.IF_ICMPLT : JVM.IF_ICMPGE;
     else if (op.equals("i<="))
-      opcode = JVM.IF_ICMPLE;
+      opcode = when ? JVM.IF_ICMPLE : JVM.IF_ICMPGT;
     else if (op.equals("i>"))
-      opcode = JVM.IF_ICMPGT;
+      opcode = when ? JVM.IF_ICMPGT : JVM.IF_ICMPLE;
     else // if (op.equals("i>="))
-      opcode = JVM.IF_ICMPGE;
+      opcode = when ? JVM.IF_ICMPGE : JVM.IF_ICMPLT;
 
-    String falseLabel = frame.getNewLabel();
-    String nextLabel = frame.getNewLabel();
-
-    emit(opcode, falseLabel);
-    frame.pop(2); 
-    emit("iconst_0");
-    emit("goto", nextLabel);
-    emit(falseLabel + ":");
-    emit(JVM.ICONST_1);
-    frame.push(); 
-    emit(nextLabel + ":");
+    emit(opcode, label);
+    frame.pop(2);
   }
 
-  private void emitFCMP(String op, Frame frame) {
-    String opcode;
+  // Jumps to label if the comparison op of the two floats on the
+  // operand stack is "when". fcmpg (which gives 1 for NaN) is used for
+  // < and <= and fcmpl (which gives -1) for > and >=, so that every
+  // comparison with NaN is false.
+
+  private void emitFCMP(String op, boolean when, String label, Frame frame) {
+    int opcode;
 
     if (op.equals("f!="))
-      opcode = JVM.IFNE;
+      opcode = when ? JVM.IFNE : JVM.IFEQ;
     else if (op.equals("f=="))
-      opcode = JVM.IFEQ;
+      opcode = when ? JVM.IFEQ : JVM.IFNE;
     else if (op.equals("f<"))
-      opcode = JVM.IFLT;
+      opcode = when ? JVM.IFLT : JVM.IFGE;
     else if (op.equals("f<="))
-      opcode = JVM.IFLE;
+      opcode = when ? JVM.IFLE : JVM.IFGT;
     else if (op.equals("f>"))
-      opcode = JVM.IFGT;
+      opcode = when ? JVM.IFGT : JVM.IFLE;
     else // if (op.equals("f>="))
-      opcode = JVM.IFGE;
+      opcode = when ? JVM.IFGE : JVM.IFLT;
 
-    String falseLabel = frame.getNewLabel();
-    String nextLabel = frame.getNewLabel();
+    if (op.equals("f<") || op.equals("f<="))
+      emit(JVM.FCMPG);
+    else
+      emit(JVM.FCMPL);
+    frame.pop();
+    emit(opcode, label);
+    frame.pop();
+  }
 
-    emit(JVM.FCMPG);
-    frame.pop(2);
-    emit(opcode, falseLabel);
-    emit(JVM.ICONST_0);
-    emit("goto", nextLabel);
-    emit(falseLabel + ":");
-    emit(JVM.ICONST_1);
-    frame.push();
-    emit(nextLabel + ":");
 
+  // iinc takes an index below 256 and a signed byte constant (or with
+  // the wide prefix, a signed short). Jasmin cannot write the wide
+  // prefix (see JVM.WIDE), so CodeBuffer.write turns an iinc that needs
+  // it into iload, sipush, iadd and istore. The index is known only
+  // after the slot allocation, so there is room left on the operand
+  // stack for this in any case.
+
+  private void emitIINC(int index, int c, Frame frame) {
+    code.append(JVM.IINC, index, c);
+    if (writingJasmin) {
+      frame.push(2);
+      frame.pop(2);
+    }
   }
 
+  // The loads and stores of local variables. The short forms such as
+  // iload_1 are chosen when the code is written.
+
 
   private void emitILOAD(int index) {
-    if (index >= 0 && index <= 3) 
-      emit(JVM.ILOAD + "_" + index); 
-    else
-      emit(JVM.ILOAD, index); 
+    emit(JVM.ILOAD, index);
   }
 
   private void emitFLOAD(int index) {
-    if (index >= 0 && index <= 3) 
-      emit(JVM.FLOAD + "_"  + index); 
-    else
-      emit(JVM.FLOAD, index); 
+    emit(JVM.FLOAD, index);
   }
 
   private void emitALOAD(int index) {
-    if (index >= 0 && index <= 3)
-      emit(JVM.ALOAD + "_" + index);
-    else
-      emit(JVM.ALOAD, index);
+    emit(JVM.ALOAD, index);
   }
 
   private void emitGETSTATIC(String T, String I) {
-    emit(JVM.GETSTATIC, classname + "/" + I, T); 
+    emit(JVM.GETSTATIC, classname + "/" + I + " " + T);
   }
 
-  private void emitISTORE(Ident ast) {
-    int index;
-    if (ast.decl instanceof ParaDecl)
-      index = ((ParaDecl) ast.decl).index;
-    else
-      index = ((LocalVarDecl) ast.decl).index; 
-    
-    if (index >= 0 && index <= 3) 
-      emit(JVM.ISTORE + "_" + index); 
-    else
-      emit(JVM.ISTORE, index); 
+  private void emitISTORE(Ident ast, Frame frame) {
+    emitISTORE(frame.getIndex((Decl) ast.decl));
   }
 
-  private void emitFSTORE(Ident ast) {
-    int index;
-    if (ast.decl instanceof ParaDecl)
-      index = ((ParaDecl) ast.decl).index; 
-    else
-      index = ((LocalVarDecl) ast.decl).index; 
-    if (index >= 0 && index <= 3) 
-      emit(JVM.FSTORE + "_" + index); 
-    else
-      emit(JVM.FSTORE, index); 
+  private void emitISTORE(int index) {
+    emit(JVM.ISTORE, index);
   }
 
-  private void emitASTORE(Ident ast) {
-    int index;
-    if (ast.decl instanceof ParaDecl)
-      index = ((ParaDecl) ast.decl).index;
-    else
-      index = ((LocalVarDecl) ast.decl).index;
+  private void emitFSTORE(Ident ast, Frame frame) {
+    emitFSTORE(frame.getIndex((Decl) ast.decl));
+  }
+
+  private void emitFSTORE(int index) {
+    emit(JVM.FSTORE, index);
+  }
 
-    if (index >= 0 && index <= 3)
-      emit(JVM.ASTORE + "_" + index);
+  private void emitASTORE(Ident ast, Frame frame) {
+    emitASTORE(frame.getIndex((Decl) ast.decl));
+  }
+
+  private void emitASTORE(int index) {
+    emit(JVM.ASTORE, index);
+  }
+
+  // stores the top of the operand stack into a variable of type T
+
+  private void emitSTORE(Type T, int index) {
+    if (T.isArrayType())
+      emitASTORE(index);
+    else if (T.isFloatType())
+      emitFSTORE(index);
     else
-      emit(JVM.ASTORE, index);
+      emitISTORE(index);
   }
 
   private void emitPUTSTATIC(String T, String I) {
-    emit(JVM.PUTSTATIC, classname + "/" + I, T); 
+    emit(JVM.PUTSTATIC, classname + "/" + I + " " + T);
   }
 
   private void emitICONST(int value) {
     if (value == -1)
       emit(JVM.ICONST_M1); 
     else if (value >= 0 && value <= 5) 
-      emit(JVM.ICONST + "_" + value); 
+      emit(JVM.ICONST_0 + value);
     else if (value >= -128 && value <= 127) 
       emit(JVM.BIPUSH, value); 
     else if (value >= -32768 && value <= 32767)
       emit(JVM.SIPUSH, value); 
     else 
-      emit(JVM.LDC, value); 
+      code.append(JVM.LDC, value, JVM.LDC_INT);
   }
 
   private void emitFCONST(float value) {
@@ -1063,7 +1770,7 @@ public final class Emitter implements Visitor {
     else if(value == 2.0)
       emit(JVM.FCONST_2); 
     else 
-      emit(JVM.LDC, value); 
+      code.append(JVM.LDC, Float.floatToIntBits(value), JVM.LDC_FLOAT);
   }
 
   private void emitBCONST(boolean value) {
@@ -1073,6 +1780,17 @@ public final class Emitter implements Visitor {
       emit(JVM.ICONST_0);
   }
 
+  // the element type code of newarray for the elements of type t
+
+  private static int arrayType(Type t) {
+    if (t.isFloatType())
+      return JVM.T_FLOAT;
+    else if (t.isBooleanType())
+      return JVM.T_BOOLEAN;
+    else
+      return JVM.T_INT;
+  }
+
   private String VCtoJavaType(Type t) {
     if (t.equals(StdEnvironment.booleanType))
       return "Z";
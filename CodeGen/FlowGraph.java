@@ -0,0 +1,301 @@
+/*
+ * FlowGraph.java
+ */
+
+// Control flow graph optimisations on the code in a CodeBuffer.
+//
+// The code of every method is split into basic blocks, which start
+// at labels and end with jumps and returns. Then
+//
+//   (1) jumps are threaded: a jump to a block that consists of only
+//       "goto L" jumps to L instead, and "goto L" where the block at L
+//       consists of only a return is replaced by the return,
+//   (2) the blocks that cannot be reached from the entry are removed,
+//       and
+//   (3) the remaining blocks are laid out starting from the entry. A
+//       block that falls through is followed by its successor. A
+//       block that ends with "goto L" is followed by the block at L
+//       if this does not break any other fall through (the goto is
+//       then removed), and "ifXX L; goto M" is negated into "if!XX M"
+//       when the block at L can be placed next. Otherwise, the next
+//       block is the first unplaced one in the original order, and a
+//       goto is added wherever a fall through cannot be kept.
+//
+// The labels (and .var directives) of the removed blocks are kept, as
+// they may be used by .var directives. A .var directive whose scope is
+// reversed by the new layout is dropped, as giving it any other scope
+// could make it clash with the entry of a variable sharing its index.
+// The .limit directives are kept, since the stack heights at the
+// block boundaries are unchanged.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+final class FlowGraph {
+
+  // The lines of a block are indices into the code. The lines added
+  // by the optimisations are appended to the end of the code.
+
+  private final class Block {
+    final ArrayList<Integer> lines = new ArrayList<Integer>();
+    final ArrayList<Integer> labels = new ArrayList<Integer>();
+    int last = -1;           // the last instruction (-1 if there is none)
+    Block next;              // the next block in the original order
+    Block prev;              // the previous block in the original order
+    boolean reachable;
+    boolean placed;
+
+    int op() {
+      return last < 0 ? JVM.NOP : code.op(last);
+    }
+
+    // the block reached by the jump at the end of this block
+
+    Block target() {
+      return blocks.get(code.arg(last));
+    }
+
+    boolean jumps() {
+      return JVM.isBranch(op());
+    }
+
+    boolean isConditional() {
+      return JVM.isConditional(op());
+    }
+
+    boolean fallsThrough() {
+      int op = op();
+      return ! (op == JVM.GOTO || JVM.isReturn(op)) && next != null;
+    }
+
+    // the only instruction of the block (-1 if it has none or more)
+
+    int single() {
+      int single = -1;
+      for (int i : lines)
+        if (JVM.isInstruction(code.op(i))) {
+          if (single >= 0)
+            return -1;
+          single = i;
+        }
+      return single;
+    }
+
+    void removeLast() {
+      lines.remove(Integer.valueOf(last));
+      last = -1;
+      for (int i : lines)
+        if (JVM.isInstruction(code.op(i)))
+          last = i;
+    }
+
+    void append(int op, int arg) {
+      last = code.append(op, arg);
+      lines.add(last);
+    }
+  }
+
+  // The blocks of the method being optimised (in the original order)
+  // and the blocks starting at every label
+  private ArrayList<Block> order;
+  private HashMap<Integer, Block> blocks;
+
+  private final CodeBuffer code;
+  private int nextLabel;
+
+  private FlowGraph(CodeBuffer code) {
+    this.code = code;
+  }
+
+  // Optimises every method in code
+
+  static void optimise(CodeBuffer code) {
+    int end = code.size();
+    ArrayList<Integer> result = new ArrayList<Integer>();
+    int addr = 0;
+    while (addr < end) {
+      result.add(addr);
+      if (code.op(addr++) != JVM.METHOD_START)
+        continue;
+      ArrayList<Integer> body = new ArrayList<Integer>();
+      while (addr < end && code.op(addr) != JVM.LIMIT_LOCALS && code.op(addr) != JVM.LIMIT_STACK
+             && code.op(addr) != JVM.METHOD_END)
+        body.add(addr++);
+      result.addAll(new FlowGraph(code).optimiseMethod(body));
+    }
+
+    int[] lines = new int[result.size()];
+    for (int k = 0; k < lines.length; k++)
+      lines[k] = result.get(k);
+    code.rebuild(lines, lines.length);
+  }
+
+  private ArrayList<Integer> optimiseMethod(ArrayList<Integer> body) {
+    split(body);
+    if (order.isEmpty())
+      return body;
+    thread();
+    markReachable(order.get(0));
+    return layout();
+  }
+
+  private void split(ArrayList<Integer> body) {
+    order = new ArrayList<Block>();
+    blocks = new HashMap<Integer, Block>();
+    Block b = null;
+    for (int i : body) {
+      int op = code.op(i);
+      if (b == null || (op == JVM.LABEL && b.last >= 0)) {
+        b = new Block();
+        if (! order.isEmpty()) {
+          b.prev = order.get(order.size() - 1);
+          b.prev.next = b;
+        }
+        order.add(b);
+      }
+      b.lines.add(i);
+      if (op == JVM.LABEL) {
+        b.labels.add(code.arg(i));
+        blocks.put(code.arg(i), b);
+        nextLabel = Math.max(nextLabel, code.arg(i) + 1);
+      } else if (JVM.isInstruction(op)) {
+        b.last = i;
+        if (JVM.isBranch(op) || JVM.isReturn(op))
+          b = null;
+      }
+    }
+  }
+
+  // Jump threading
+
+  private void thread() {
+    for (Block b : order) {
+      if (! b.jumps())
+        continue;
+      Block t = b.target();
+      HashSet<Block> visited = new HashSet<Block>();
+      while (visited.add(t) && t.single() >= 0 && code.op(t.single()) == JVM.GOTO)
+        t = blocks.get(code.arg(t.single()));
+      if (b.op() == JVM.GOTO && t.single() >= 0 && JVM.isReturn(code.op(t.single()))) {
+        int ret = code.op(t.single());
+        b.removeLast();
+        b.append(ret, 0);
+      } else if (t != b.target())
+        retarget(b, t);
+    }
+  }
+
+  private void markReachable(Block b) {
+    while (b != null && ! b.reachable) {
+      b.reachable = true;
+      if (b.jumps())
+        markReachable(b.target());
+      b = b.fallsThrough() ? b.next : null;
+    }
+  }
+
+  // Block layout
+
+  private ArrayList<Integer> layout() {
+    ArrayList<Block> placed = new ArrayList<Block>();
+    Block b = order.get(0);
+    while (b != null) {
+      b.placed = true;
+      placed.add(b);
+
+      Block next = null;
+      if (b.fallsThrough()) {
+        if (! b.next.placed)
+          next = b.next;
+        else if (b.isConditional() && movable(b.target())) {
+          // ifXX L (then goto M)  =>  if!XX M followed by the block at L
+          Block t = b.target();
+          int op = JVM.negate(b.op());
+          b.removeLast();
+          b.append(op, label(b.next));
+          next = t;
+        } else
+          b.append(JVM.GOTO, label(b.next));
+      } else if (b.op() == JVM.GOTO && movable(b.target())) {
+        next = b.target();
+        b.removeLast();
+      }
+
+      if (next == null)
+        for (Block c : order)
+          if (c.reachable && ! c.placed) {
+            next = c;
+            break;
+          }
+      b = next;
+    }
+
+    // The labels of the removed blocks are kept before the next
+    // remaining block in the original order (or at the end).
+    ArrayList<Integer> removed = new ArrayList<Integer>();
+    for (Block c : order) {
+      if (c.reachable) {
+        c.lines.addAll(0, removed);
+        removed.clear();
+      } else
+        for (int i : c.lines)
+          if (! JVM.isInstruction(code.op(i)))
+            removed.add(i);
+    }
+
+    ArrayList<Integer> lines = new ArrayList<Integer>();
+    for (Block c : placed)
+      lines.addAll(c.lines);
+    lines.addAll(removed);
+    fixScopes(lines);
+    return lines;
+  }
+
+  // true if the block can be placed after a jump to it without
+  // breaking the fall through from its predecessor
+
+  private boolean movable(Block b) {
+    return ! b.placed && (b.prev == null || ! b.prev.reachable || ! b.prev.fallsThrough()
+                          || b.prev.placed);
+  }
+
+  private int label(Block b) {
+    if (b.labels.isEmpty()) {
+      int label = nextLabel++;
+      b.labels.add(label);
+      b.lines.add(0, code.append(JVM.LABEL, label));
+      blocks.put(label, b);
+    }
+    return b.labels.get(0);
+  }
+
+  private void retarget(Block b, Block t) {
+    int op = b.op();
+    b.removeLast();
+    b.append(op, label(t));
+  }
+
+  // Drops the .var directives whose scopes end before they start,
+  // leaving them as comments
+
+  private void fixScopes(ArrayList<Integer> lines) {
+    HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>();
+    for (int k = 0; k < lines.size(); k++)
+      if (code.op(lines.get(k)) == JVM.LABEL)
+        positions.put(code.arg(lines.get(k)), k);
+
+    for (int i : lines) {
+      if (code.op(i) != JVM.VAR)
+        continue;
+      Integer start = positions.get(code.arg3(i)), end = positions.get(code.arg4(i));
+      if (start != null && end != null && start > end) {
+        code.setArg(i, code.string("; reversed scope: " + code.toString(i)));
+        code.setOp(i, JVM.TEXT);
+      }
+    }
+  }
+
+}
@@ -4,13 +4,28 @@
 
 package VC.CodeGen;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Stack;
 
+import VC.ASTs.Decl;
+import VC.ASTs.Expr;
+import VC.ASTs.FuncDecl;
+
  public class Frame {
 
     // true if the function being compiled is main and false otherwise
     private final boolean _main;
 
+    // The function being compiled (null for main and <clinit>) and
+    // the label marking the start of its body
+    public FuncDecl function;
+    public String entryLabel;
+
+    // The number of AST nodes that may still be inlined into this
+    // function (see Inliner.java)
+    public int inlineBudget;
+
    // The index for the next new label to be allocated in this frame
    private int label;
 
@@ -40,6 +55,14 @@ import java.util.Stack;
 
    private int localVarIndex;
 
+   // The indices of the parameters and local variables (including
+   // those of the functions inlined into this one). They are kept here
+   // rather than in Decl.index, since the body of an inlined function
+   // is translated once in every caller, possibly at the same time
+   // when the functions are translated in parallel.
+
+   private HashMap<Decl, Integer> indices;
+
    // Simulate the execution of byte code to determine at compile-time
    // the maximum depth of the operand stack for a method. 
    // See page 73, T Lindholm and F Yellin, The JVM spec, 2nd ed.
@@ -60,16 +83,41 @@ import java.util.Stack;
    public Stack<String> scopeStart;
    public Stack<String> scopeEnd; 
 
+   // Expressions whose values are currently available in local
+   // variables (e.g., derived induction expressions kept in temporaries
+   // by the optimiser). They are loaded rather than re-evaluated.
+
+   public HashMap<Expr, Integer> cachedExprs;
+
+   // Common subexpressions (see ValueNumbering.java): every reused
+   // expression is mapped to the earlier expression whose value it
+   // reuses. The values of the latter are saved in savedExprs.
+
+   public HashMap<Expr, Expr> commonExprs;
+   public HashSet<Expr> commonDefs;
+   public HashMap<Expr, Integer> savedExprs;
+
+   // Labels marking the ends of the inlined function bodies being
+   // translated. A return in an inlined body jumps to the innermost.
+
+   public Stack<String> inlineExits;
+
    public Frame(boolean _main) {
      this._main = _main;
      label = 0;
      localVarIndex = 0;
+     indices = new HashMap<Decl, Integer>();
      currentStackSize = 0;
      maximumStackSize = 0;
      conStack = new Stack<String>();
      brkStack = new Stack<String>();
      scopeStart = new Stack<String>();
      scopeEnd = new Stack<String>();
+     cachedExprs = new HashMap<Expr, Integer>();
+     commonExprs = new HashMap<Expr, Expr>();
+     commonDefs = new HashSet<Expr>();
+     savedExprs = new HashMap<Expr, Integer>();
+     inlineExits = new Stack<String>();
    }
 
    public boolean isMain() { 
@@ -80,12 +128,26 @@ import java.util.Stack;
 
    public int getNewIndex() { 
      if (localVarIndex >= JVM.MAX_LOCALVARINDEX) {
-       System.out.println("The maximum local variable index (" + JVM.MAX_LOCALVARINDEX + ") reached.");
-       System.exit(1);
+       throw new CodeGenException("The maximum local variable index (" + JVM.MAX_LOCALVARINDEX + ") reached.");
      }
      return localVarIndex++;
    }
 
+  // assigns the next new local variable index to a variable or
+  // parameter and returns it
+
+   public int getNewIndex(Decl decl) {
+     int index = getNewIndex();
+     indices.put(decl, index);
+     return index;
+   }
+
+  // returns the index of a variable or parameter
+
+   public int getIndex(Decl decl) {
+     return indices.get(decl);
+   }
+
   // returns the next new label for this frame
 
    public String getNewLabel() { 
@@ -103,12 +165,11 @@ import java.util.Stack;
    //System.out.println("\t push called "  + i );
      currentStackSize += i;
      if (currentStackSize < 0 || currentStackSize > JVM.MAX_OPSTACK) {
-       System.out.println("Invalid operand stack size.");
-       System.out.println("Current operand stack size is " + currentStackSize + ".");
-       System.out.println("You wanted to push " + i + ((i == 1) ? " operand" : " operands") + " to the stack.");
-       System.out.println("The size of the operand stack is limited to the range 0 .. " + JVM.MAX_OPSTACK + ".");
-       System.out.println("Good luck with debugging your code generator."); 
-       System.exit(1);
+       throw new CodeGenException("Invalid operand stack size.\n"
+         + "Current operand stack size is " + currentStackSize + ".\n"
+         + "You wanted to push " + i + ((i == 1) ? " operand" : " operands") + " to the stack.\n"
+         + "The size of the operand stack is limited to the range 0 .. " + JVM.MAX_OPSTACK + ".\n"
+         + "Good luck with debugging your code generator.");
      }
 
      if (currentStackSize > maximumStackSize)
@@ -124,12 +185,11 @@ import java.util.Stack;
      currentStackSize -= i;
 
      if (currentStackSize < 0) {
-       System.out.println("Invalid operand stack size.");
-       System.out.println("Current operand stack size is " + currentStackSize + ".");
-       System.out.println("You wanted to pop " + i + ((i == 1) ? " operand" : " operands") + " to the stack.");
-       System.out.println("The size of the operand stack is limited to the range 0 .. " + JVM.MAX_OPSTACK + ".");
-       System.out.println("Good luck with debugging your code generator."); 
-       System.exit(1);
+       throw new CodeGenException("Invalid operand stack size.\n"
+         + "Current operand stack size is " + currentStackSize + ".\n"
+         + "You wanted to pop " + i + ((i == 1) ? " operand" : " operands") + " to the stack.\n"
+         + "The size of the operand stack is limited to the range 0 .. " + JVM.MAX_OPSTACK + ".\n"
+         + "Good luck with debugging your code generator.");
      }
    }
   
@@ -0,0 +1,283 @@
+/*
+ * InductionVariables.java
+ */
+
+// Induction-variable analysis for VC for statements.
+//
+// A for statement
+//
+//      for (E1; E2; v = v + c) S
+//
+// has a basic induction variable v if v is an int local variable (or
+// parameter), c is an integer literal and v is assigned nowhere else
+// in E2 or S. An int expression e in E2 or S is a derived induction
+// expression if it is linear in v, i.e.,
+//
+//      e == k * x1 * ... * xm * v + b
+//
+// where k is a constant and x1, ..., xm and b are loop invariant.
+// Every evaluation of e in the loop can then be replaced by a read of
+// a temporary t that is initialised to e at the loop entry and
+// incremented by c * k * x1 * ... * xm whenever v is updated.
+//
+// Loop invariants are restricted to literals and int local variables
+// that are not assigned in the loop. Global variables are excluded as
+// they can be modified by any call made in the loop.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import VC.ASTs.*;
+
+final class InductionVariables {
+
+  // A derived induction expression found in a loop. The emitter fills
+  // in the local variable indices when it allocates the temporaries.
+
+  static final class Derived {
+    Expr expr;            // the expression replaced by a temporary
+    int step;             // c * k
+    ArrayList<Decl> factors = new ArrayList<Decl>(); // x1, ..., xm
+    int index;            // the temporary holding the value of expr
+    int stepIndex = -1;   // the temporary holding the step (if m > 0)
+  }
+
+  // The linear form k * x1 * ... * xm * v + b of an expression.
+  // dependent is false if the expression is loop invariant.
+
+  private static final class Linear {
+    boolean dependent;
+    int coef;
+    ArrayList<Decl> factors = new ArrayList<Decl>();
+    int ops;              // number of operators in the expression
+    boolean multiplies;   // true if some operator is a multiplication
+  }
+
+  private final ForStmt loop;
+  private Decl iv;
+  private int ivStep;
+
+  // The local variables and parameters assigned in E2 or S
+  private final HashSet<Decl> assigned = new HashSet<Decl>();
+
+  private final ArrayList<Derived> derived = new ArrayList<Derived>();
+
+  private InductionVariables(ForStmt loop) {
+    this.loop = loop;
+  }
+
+  // Returns the derived induction expressions of the given loop (in
+  // the order of their first evaluation) or an empty list if the
+  // loop has no basic induction variable.
+
+  static ArrayList<Derived> analyse(ForStmt loop) {
+    InductionVariables ivs = new InductionVariables(loop);
+    if (ivs.findBasicInductionVariable())
+      ivs.findDerived();
+    return ivs.derived;
+  }
+
+  private boolean findBasicInductionVariable() {
+    if (! (loop.E3 instanceof AssignExpr))
+      return false;
+    AssignExpr update = (AssignExpr) loop.E3;
+    Decl v = localVar(update.E1);
+    if (v == null || ! v.T.isIntType() || ! (update.E2 instanceof BinaryExpr))
+      return false;
+
+    BinaryExpr rhs = (BinaryExpr) update.E2;
+    String op = rhs.O.spelling;
+    Integer c = null;
+    if (op.equals("i+")) {
+      if (localVar(rhs.E1) == v)
+        c = intLiteral(rhs.E2);
+      else if (localVar(rhs.E2) == v)
+        c = intLiteral(rhs.E1);
+    } else if (op.equals("i-") && localVar(rhs.E1) == v) {
+      c = intLiteral(rhs.E2);
+      if (c != null)
+        c = -c;
+    }
+    if (c == null)
+      return false;
+
+    ASTWalker assignments = new ASTWalker() {
+      public Object visitAssignExpr(AssignExpr ast, Object o) {
+        Decl d = localVar(ast.E1);
+        if (d != null)
+          assigned.add(d);
+        return super.visitAssignExpr(ast, o);
+      }
+      public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+        assigned.add(ast);
+        return super.visitLocalVarDecl(ast, o);
+      }
+    };
+    loop.E2.visit(assignments, null);
+    loop.S.visit(assignments, null);
+    if (assigned.contains(v))
+      return false;
+
+    iv = v;
+    ivStep = c;
+    return true;
+  }
+
+  private void findDerived() {
+    ASTWalker finder = new ASTWalker() {
+      public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+        if (! candidate(ast))
+          super.visitBinaryExpr(ast, o);
+        return null;
+      }
+      public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+        if (! candidate(ast))
+          super.visitUnaryExpr(ast, o);
+        return null;
+      }
+    };
+    loop.E2.visit(finder, null);
+    loop.S.visit(finder, null);
+  }
+
+  // Records e if it is a derived induction expression worth replacing.
+  // Replacing v + b by a temporary is not profitable because the
+  // temporary itself must be incremented in every iteration.
+
+  private boolean candidate(Expr e) {
+    Linear l = linear(e);
+    if (l == null || ! l.dependent || l.coef == 0)
+      return false;
+    if (! l.multiplies && l.ops < 2)
+      return false;
+    Derived d = new Derived();
+    d.expr = e;
+    d.step = ivStep * l.coef;
+    d.factors = l.factors;
+    derived.add(d);
+    return true;
+  }
+
+  // Returns the linear form of e or null if e is not linear in v.
+
+  private Linear linear(Expr e) {
+    Linear l;
+    if (e instanceof IntExpr) {
+      l = new Linear();
+    } else if (e instanceof VarExpr) {
+      Decl d = localVar(e);
+      if (d == null || ! d.T.isIntType())
+        return null;
+      l = new Linear();
+      if (d == iv) {
+        l.dependent = true;
+        l.coef = 1;
+      } else if (assigned.contains(d))
+        return null;
+    } else if (e instanceof UnaryExpr) {
+      UnaryExpr u = (UnaryExpr) e;
+      String op = u.O.spelling;
+      if (! (op.equals("i-") || op.equals("i+")))
+        return null;
+      l = linear(u.E);
+      if (l == null)
+        return null;
+      if (op.equals("i-"))
+        l.coef = -l.coef;
+      l.ops++;
+    } else if (e instanceof BinaryExpr) {
+      BinaryExpr b = (BinaryExpr) e;
+      String op = b.O.spelling;
+      if (! (op.equals("i+") || op.equals("i-") || op.equals("i*")))
+        return null;
+      Linear l1 = linear(b.E1);
+      if (l1 == null)
+        return null;
+      Linear l2 = linear(b.E2);
+      if (l2 == null)
+        return null;
+
+      if (op.equals("i*")) {
+        if (l1.dependent && l2.dependent)
+          return null;
+        if (l1.dependent)
+          l = scale(l1, b.E2);
+        else
+          l = scale(l2, b.E1);
+        if (l == null)
+          return null;
+        l.multiplies = true;
+      } else {
+        int sign = op.equals("i+") ? 1 : -1;
+        if (l1.dependent && l2.dependent) {
+          if (! sameFactors(l1.factors, l2.factors))
+            return null;
+          l1.coef += sign * l2.coef;
+          l = l1;
+        } else if (l2.dependent) {
+          l2.coef *= sign;
+          l = l2;
+        } else
+          l = l1;
+        l.multiplies = l1.multiplies || l2.multiplies;
+      }
+      l.ops = l1.ops + l2.ops + 1;
+    } else
+      return null;
+    return l;
+  }
+
+  // Multiplies the dependent linear form l by the invariant operand e.
+
+  private Linear scale(Linear l, Expr e) {
+    if (! l.dependent)
+      return l;
+    Integer k = intLiteral(e);
+    if (k != null) {
+      l.coef *= k;
+      return l;
+    }
+    Decl d = localVar(e);
+    if (d == null)
+      return null;
+    l.factors.add(d);
+    return l;
+  }
+
+  private static boolean sameFactors(ArrayList<Decl> f1, ArrayList<Decl> f2) {
+    if (f1.size() != f2.size())
+      return false;
+    ArrayList<Decl> rest = new ArrayList<Decl>(f2);
+    for (Decl d : f1)
+      if (! rest.remove(d))
+        return false;
+    return true;
+  }
+
+  // Returns the declaration of e if e is a local variable or parameter
+  // and null otherwise.
+
+  static Decl localVar(Expr e) {
+    if (! (e instanceof VarExpr) || ! (((VarExpr) e).V instanceof SimpleVar))
+      return null;
+    AST d = ((SimpleVar) ((VarExpr) e).V).I.decl;
+    if (d instanceof LocalVarDecl || d instanceof ParaDecl)
+      return (Decl) d;
+    return null;
+  }
+
+  // Returns the value of e if e is an integer literal and null otherwise.
+
+  static Integer intLiteral(Expr e) {
+    if (! (e instanceof IntExpr))
+      return null;
+    try {
+      return Integer.valueOf(((IntExpr) e).IL.spelling);
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Inliner.java
+ */
+
+// Decides which calls to programmer-defined functions are inlined.
+//
+// A function is inlinable if
+//   (1) it is not main,
+//   (2) it is not (directly or indirectly) recursive in the call graph,
+//   (3) its body has at most INLINE_THRESHOLD statement and expression
+//       nodes, and
+//   (4) it returns void or every path through its body ends with a
+//       return, so that the inlined code always leaves the result on
+//       the operand stack.
+//
+// To limit the growth of the code, the functions inlined into a caller
+// may have at most max(MIN_BUDGET, the size of the caller) nodes in
+// total. The budget is kept in the caller's Frame.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import VC.ASTs.*;
+
+final class Inliner {
+
+  static final int INLINE_THRESHOLD = 40;
+  static final int MIN_BUDGET = 120;
+
+  // The programmer-defined functions called by every function
+  private final HashMap<FuncDecl, HashSet<FuncDecl>> callees =
+    new HashMap<FuncDecl, HashSet<FuncDecl>>();
+
+  private final HashMap<FuncDecl, Integer> sizes = new HashMap<FuncDecl, Integer>();
+  private final HashSet<FuncDecl> inlinable = new HashSet<FuncDecl>();
+
+  Inliner(Program ast) {
+    ArrayList<FuncDecl> funcs = new ArrayList<FuncDecl>();
+    List list = ast.FL;
+    while (! list.isEmpty()) {
+      DeclList dlAST = (DeclList) list;
+      if (dlAST.D instanceof FuncDecl)
+        funcs.add((FuncDecl) dlAST.D);
+      list = dlAST.DL;
+    }
+    for (FuncDecl f : funcs)
+      callees.put(f, new HashSet<FuncDecl>());
+
+    for (FuncDecl f : funcs) {
+      Counter counter = new Counter(callees.get(f));
+      f.S.visit(counter, null);
+      sizes.put(f, counter.size);
+    }
+
+    for (FuncDecl f : funcs)
+      if (! f.I.spelling.equals("main") && ! reaches(f, f, new HashSet<FuncDecl>())
+          && sizes.get(f) <= INLINE_THRESHOLD
+          && (f.T.isVoidType() || alwaysReturns(f.S)))
+        inlinable.add(f);
+  }
+
+  // the number of statement and expression nodes in the body of f
+
+  int size(FuncDecl f) {
+    Integer size = sizes.get(f);
+    return size == null ? 0 : size;
+  }
+
+  // the inlining budget of a caller
+
+  int budget(FuncDecl caller) {
+    return Math.max(MIN_BUDGET, size(caller));
+  }
+
+  boolean shouldInline(FuncDecl callee, Frame frame) {
+    return inlinable.contains(callee) && size(callee) <= frame.inlineBudget;
+  }
+
+  // Counts the statement and expression nodes of a function body and
+  // collects the programmer-defined functions it calls
+
+  private final class Counter extends ASTWalker {
+
+    int size;
+    private final HashSet<FuncDecl> called;
+
+    Counter(HashSet<FuncDecl> called) {
+      this.called = called;
+    }
+
+    public Object visitCallExpr(CallExpr ast, Object o) {
+      size++;
+      if (callees.containsKey(ast.I.decl))
+        called.add((FuncDecl) ast.I.decl);
+      return super.visitCallExpr(ast, o);
+    }
+
+    public Object visitExprStmt(ExprStmt ast, Object o) {
+      size++;
+      return super.visitExprStmt(ast, o);
+    }
+
+    public Object visitIfStmt(IfStmt ast, Object o) {
+      size++;
+      return super.visitIfStmt(ast, o);
+    }
+
+    public Object visitWhileStmt(WhileStmt ast, Object o) {
+      size++;
+      return super.visitWhileStmt(ast, o);
+    }
+
+    public Object visitForStmt(ForStmt ast, Object o) {
+      size++;
+      return super.visitForStmt(ast, o);
+    }
+
+    public Object visitReturnStmt(ReturnStmt ast, Object o) {
+      size++;
+      return super.visitReturnStmt(ast, o);
+    }
+
+    public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+      size++;
+      return super.visitLocalVarDecl(ast, o);
+    }
+
+    public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+      size++;
+      return super.visitUnaryExpr(ast, o);
+    }
+
+    public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+      size++;
+      return super.visitBinaryExpr(ast, o);
+    }
+
+    public Object visitAssignExpr(AssignExpr ast, Object o) {
+      size++;
+      return super.visitAssignExpr(ast, o);
+    }
+
+    public Object visitArrayExpr(ArrayExpr ast, Object o) {
+      size++;
+      return super.visitArrayExpr(ast, o);
+    }
+
+    public Object visitVarExpr(VarExpr ast, Object o) {
+      size++;
+      return null;
+    }
+
+    public Object visitIntExpr(IntExpr ast, Object o) {
+      size++;
+      return null;
+    }
+
+    public Object visitFloatExpr(FloatExpr ast, Object o) {
+      size++;
+      return null;
+    }
+
+    public Object visitBooleanExpr(BooleanExpr ast, Object o) {
+      size++;
+      return null;
+    }
+
+    public Object visitStringExpr(StringExpr ast, Object o) {
+      size++;
+      return null;
+    }
+
+  }
+
+  // true if "to" can be called (indirectly) from "from"
+
+  private boolean reaches(FuncDecl from, FuncDecl to, HashSet<FuncDecl> visited) {
+    for (FuncDecl g : callees.get(from)) {
+      if (g == to)
+        return true;
+      if (visited.add(g) && reaches(g, to, visited))
+        return true;
+    }
+    return false;
+  }
+
+  // true if every path through s ends with a return
+
+  private static boolean alwaysReturns(Stmt s) {
+    if (s instanceof ReturnStmt)
+      return true;
+    if (s instanceof IfStmt)
+      return alwaysReturns(((IfStmt) s).S1) && alwaysReturns(((IfStmt) s).S2);
+    if (s instanceof CompoundStmt) {
+      List list = ((CompoundStmt) s).SL;
+      while (! list.isEmpty()) {
+        if (alwaysReturns(((StmtList) list).S))
+          return true;
+        list = ((StmtList) list).SL;
+      }
+    }
+    return false;
+  }
+
+}
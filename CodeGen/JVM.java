@@ -4,187 +4,230 @@
 
 package VC.CodeGen;
 
-import java.io.*;
-
 // This JVM includes only a subset the JVM instructions
 
 public final class JVM {
 
-// CODE STORE
-
-  public static int nextInstAddr = 0;
-  public static int codeSize = 512;
-  public static Instruction[] code = new Instruction[codeSize];
-
-  // In production compilers, expensive array copies will be avoided
-  // when dynamic data structures such as linked lists are used.
-  public static void append(Instruction inst) {
-    if (nextInstAddr >= codeSize) {
-      Instruction[] newCode = new Instruction[2 * codeSize];
-      System.arraycopy(code, 0, newCode, 0, codeSize); 
-      codeSize = 2 * code.length;
-      code = newCode;
-    }
-    
-    code[nextInstAddr++] = inst;
-  }
-  
-  public static void dump(String filename) {
-    PrintWriter writer;
-    try {
-      writer = new PrintWriter(new FileOutputStream(filename));
-      for (int addr = 0; addr < nextInstAddr; addr++)
-      JVM.code[addr].write(writer);
-
-      writer.close();
-    } catch (FileNotFoundException e) {
-      System.out.println ("Error opening object file: " + e); 
-      System.exit(1);
-    } catch (Exception e) {
-      System.out.println ("Error writing object file: " + e); 
-      System.exit(1);
-    }
+// The code itself is kept in a CodeBuffer.
+
+  // the label id of the label "Ln"
+
+  public static int label(String label) {
+    return Integer.parseInt(label.substring(1));
   }
 
 // Jasmin ASSEMBLY INSTRUCTIONS
 
-  // Directive codes
+  // Directive codes (written as TEXT)
   public final static String
     SOURCE = ".source",
     CLASS = ".class",
     STATIC_FIELD  = ".field static",
-    LIMIT = ".limit",
-    METHOD_START = ".method",
-    METHOD_END = ".end",
     SUPER = ".super",
-    VAR  = ".var",
-    LINE  = ".line",
+    LINE  = ".line";
+
+  // Pseudo opcodes of the lines that are no instructions
+  public final static int
+    LABEL = -1,
+    METHOD_START = -2,
+    METHOD_END = -3,
+    LIMIT_LOCALS = -4,
+    LIMIT_STACK = -5,
+    VAR = -6,
+    TEXT = -7,
+    DELETED = -8;   // a line removed by an optimisation
 
   // JVM operation codes
 
+  public final static int
+
   // Arithmetic Instructions
 
-     FADD = "fadd",
-     IADD = "iadd",
-     FSUB = "fsub",
-     ISUB = "isub",
-     FMUL = "fmul",
-     IMUL = "imul",
-     FDIV = "fdiv",
-     IDIV = "idiv",
-     FCMPG = "fcmpg",
-     FCMPL = "fcmpl",
-     FNEG = "fneg",
-     INEG = "ineg",
-     IXOR = "ixor",
-     WIDE = "wide", // not supported by Jasmin
+     FADD = 0x62,
+     IADD = 0x60,
+     FSUB = 0x66,
+     ISUB = 0x64,
+     FMUL = 0x6a,
+     IMUL = 0x68,
+     FDIV = 0x6e,
+     IDIV = 0x6c,
+     FCMPG = 0x96,
+     FCMPL = 0x95,
+     FNEG = 0x76,
+     INEG = 0x74,
+     IXOR = 0x82,
+     IAND = 0x7e,
+     ISHL = 0x78,
+     ISHR = 0x7a,
+     IINC = 0x84,
+     WIDE = 0xc4, // not supported by Jasmin
 
 
   // Loading and storing instructions
-    GETSTATIC = "getstatic",
-    PUTSTATIC = "putstatic",
+    GETSTATIC = 0xb2,
+    PUTSTATIC = 0xb3,
 
     // load a local variable into the operand stack
-    ALOAD = "aload",
-    ALOAD_0 = "aload_0",
-    ALOAD_1 = "aload_1",
-    ALOAD_2 = "aload_2",
-    ALOAD_3 = "aload_3",
-    ILOAD = "iload",
-    ILOAD_0 = "iload_0",
-    ILOAD_1 = "iload_1",
-    ILOAD_2 = "iload_2",
-    ILOAD_3 = "iload_3",
-    FLOAD = "fload",
-    FLOAD_0 = "fload_0",
-    FLOAD_1 = "fload_1",
-    FLOAD_2 = "fload_2",
-    FLOAD_3 = "fload_3",
+    ALOAD = 0x19,
+    ILOAD = 0x15,
+    FLOAD = 0x17,
     // store the operand stack into a local variable
-    ASTORE = "astore",
-    ASTORE_0 = "astore_0",
-    ASTORE_1 = "astore_1",
-    ASTORE_2 = "astore_2",
-    ASTORE_3 = "astore_3",
-    FSTORE = "fstore",
-    FSTORE_0 = "fstore_0",
-    FSTORE_1 = "fstore_1",
-    FSTORE_2 = "fstore_2",
-    FSTORE_3 = "fstore_3",
-    ISTORE = "istore",
-    ISTORE_0 = "istore_0",
-    ISTORE_1 = "istore_1",
-    ISTORE_2 = "istore_2",
-    ISTORE_3 = "istore_3",
+    ASTORE = 0x3a,
+    FSTORE = 0x38,
+    ISTORE = 0x36,
     // load a constant into the operand stack
 
-    IALOAD = "iaload",
-    FALOAD = "faload",
-    BALOAD = "baload",
-    IASTORE = "iastore",
-    FASTORE = "fastore",
-    BASTORE = "bastore",
-
-    ICONST = "iconst",     // does not exist; used in the method
-			   // emitICONST of the class Emitter.
-
-    ICONST_M1 = "iconst_m1",
-    ICONST_0 = "iconst_0",
-    ICONST_1 = "iconst_1",
-    ICONST_2 = "iconst_2",
-    ICONST_3 = "iconst_3",
-    ICONST_4 = "iconst_4",
-    ICONST_5 = "iconst_5",
-    FCONST_0 = "fconst_0",
-    FCONST_1 = "fconst_1",
-    FCONST_2 = "fconst_2",
-    BIPUSH = "bipush",
-    SIPUSH = "sipush",
-    LDC = "ldc",
-    NEWARRAY = "newarray",
+    IALOAD = 0x2e,
+    FALOAD = 0x30,
+    BALOAD = 0x33,
+    IASTORE = 0x4f,
+    FASTORE = 0x51,
+    BASTORE = 0x54,
+
+    ICONST_M1 = 0x02,
+    ICONST_0 = 0x03,
+    ICONST_1 = 0x04,
+    ICONST_2 = 0x05,
+    ICONST_3 = 0x06,
+    ICONST_4 = 0x07,
+    ICONST_5 = 0x08,
+    FCONST_0 = 0x0b,
+    FCONST_1 = 0x0c,
+    FCONST_2 = 0x0d,
+    BIPUSH = 0x10,
+    SIPUSH = 0x11,
+    LDC = 0x12,
+    LDC_W = 0x13,
+    NEWARRAY = 0xbc,
 
   // Method invocation and return instructions
 
-    INVOKESTATIC = "invokestatic",
-    INVOKESPECIAL = "invokespecial",
-    INVOKEVIRTUAL = "invokevirtual",
-    FRETURN = "freturn",
-    IRETURN = "ireturn",
-    RETURN = "return",
+    INVOKESTATIC = 0xb8,
+    INVOKESPECIAL = 0xb7,
+    INVOKEVIRTUAL = 0xb6,
+    FRETURN = 0xae,
+    IRETURN = 0xac,
+    RETURN = 0xb1,
 
   // Control transfer instructions
 
-    GOTO = "goto",
-    IFEQ = "ifeq",
-    IFNE = "ifne",
-    IFLE = "ifle",
-    IFLT = "iflt",
-    IFGE = "ifge",
-    IFGT = "ifgt",
-    IF_ICMPEQ = "if_icmpeq",
-    IF_ICMPNE = "if_icmpne",
-    IF_ICMPLE = "if_icmple",
-    IF_ICMPLT = "if_icmplt",
-    IF_ICMPGE = "if_icmpge",
-    IF_ICMPGT = "if_icmpgt",
+    GOTO = 0xa7,
+    GOTO_W = 0xc8,
+    IFEQ = 0x99,
+    IFNE = 0x9a,
+    IFLT = 0x9b,
+    IFGE = 0x9c,
+    IFGT = 0x9d,
+    IFLE = 0x9e,
+    IF_ICMPEQ = 0x9f,
+    IF_ICMPNE = 0xa0,
+    IF_ICMPLT = 0xa1,
+    IF_ICMPGE = 0xa2,
+    IF_ICMPGT = 0xa3,
+    IF_ICMPLE = 0xa4,
 
   // Type conversion instructions
-    I2F = "i2f",
+    I2F = 0x86,
 
   // Object creation and manipulation
-    NEW = "new",
+    NEW = 0xbb,
 
   // Operand Stack management instructions
-   
-    DUP = "dup",
-    POP = "pop", 
-    NOP = "nop"; 
 
-// Limitations of the JVM 
+    DUP = 0x59,
+    DUP_X2 = 0x5b,
+    POP = 0x57,
+    POP2 = 0x58,
+    NOP = 0x00;
+
+  // The element types of newarray and the kinds of ldc constants
+  public final static int
+    T_BOOLEAN = 4,
+    T_FLOAT = 6,
+    T_INT = 10,
+    LDC_INT = 0,
+    LDC_FLOAT = 1,
+    LDC_STRING = 2;
+
+  private static final String[] mnemonics = new String[256];
+
+  static {
+    String[][] names = {
+      { "nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3",
+        "iconst_4", "iconst_5" },
+      { "fconst_0", "fconst_1", "fconst_2" }, { "bipush", "sipush", "ldc", "ldc_w" },
+      { "iload" }, { "fload" }, { "aload" }, { "iaload" }, { "faload" }, { "baload" },
+      { "istore" }, { "fstore" }, { "astore" }, { "iastore" }, { "fastore" }, { "bastore" },
+      { "pop", "pop2", "dup" }, { "dup_x2" }, { "iadd" }, { "fadd" }, { "isub" }, { "fsub" },
+      { "imul" }, { "fmul" }, { "idiv" }, { "fdiv" }, { "ineg" }, { "fneg" }, { "ishl" },
+      { "ishr" }, { "iand" }, { "ixor" }, { "iinc" }, { "i2f" },
+      { "fcmpl", "fcmpg" },
+      { "ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle", "if_icmpeq", "if_icmpne", "if_icmplt",
+        "if_icmpge", "if_icmpgt", "if_icmple" }, { "goto" },
+      { "ireturn" }, { "freturn" },
+      { "return", "getstatic", "putstatic" }, { "invokevirtual", "invokespecial", "invokestatic" },
+      { "new", "newarray" }, { "wide" }
+    };
+    int[] first = {
+      NOP, FCONST_0, BIPUSH, ILOAD, FLOAD, ALOAD, IALOAD, FALOAD, BALOAD, ISTORE, FSTORE,
+      ASTORE, IASTORE, FASTORE, BASTORE, POP, DUP_X2, IADD, FADD, ISUB, FSUB, IMUL, FMUL,
+      IDIV, FDIV, INEG, FNEG, ISHL, ISHR, IAND, IXOR, IINC, I2F, FCMPL, IFEQ, GOTO, IRETURN,
+      FRETURN, RETURN, INVOKEVIRTUAL, NEW, WIDE
+    };
+    for (int k = 0; k < names.length; k++)
+      for (int j = 0; j < names[k].length; j++)
+        mnemonics[first[k] + j] = names[k][j];
+  }
+
+  public static String mnemonic(int op) {
+    return mnemonics[op];
+  }
+
+  // Classes of instructions
+
+  public static boolean isLoadOrStore(int op) {
+    return isLoad(op) || isStore(op);
+  }
+
+  public static boolean isLoad(int op) {
+    return op == ILOAD || op == FLOAD || op == ALOAD;
+  }
+
+  public static boolean isStore(int op) {
+    return op == ISTORE || op == FSTORE || op == ASTORE;
+  }
+
+  public static boolean isConditional(int op) {
+    return op >= IFEQ && op <= IF_ICMPLE;
+  }
+
+  public static boolean isBranch(int op) {
+    return op == GOTO || isConditional(op);
+  }
+
+  public static boolean isReturn(int op) {
+    return op == RETURN || op == IRETURN || op == FRETURN;
+  }
+
+  // true if op is an instruction (and not a label or a directive)
+
+  public static boolean isInstruction(int op) {
+    return op >= 0;
+  }
+
+  // The opposite of a conditional branch. The opcodes of ifeq and
+  // ifne, iflt and ifge, ..., if_icmpgt and if_icmple are pairs of
+  // consecutive numbers starting at ifeq.
+
+  public static int negate(int op) {
+    return ((op - IFEQ) ^ 1) + IFEQ;
+  }
+
+// Limitations of the JVM
 
   public final static int
     MAX_BYTE = 255,  // 2^8 -1
     MAX_SHORT = 65535, // 2^16 - 1
-    MAX_LOCALVARINDEX = MAX_SHORT, 
+    MAX_LOCALVARINDEX = MAX_SHORT,
     MAX_OPSTACK = MAX_SHORT;
 }
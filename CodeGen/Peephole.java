@@ -0,0 +1,405 @@
+/*
+ * Peephole.java
+ */
+
+// A peephole optimiser for the code in a CodeBuffer.
+//
+// The code of every method is scanned with a sliding window over its
+// instructions and labels (directives, comments and blank lines are
+// skipped). At every position, the rules in the rule table are tried
+// in turn and the first one that matches rewrites the window. This is
+// repeated until no rule applies.
+//
+// Rules:
+//
+//   bool-branch       iconst_A; goto Lb; La: iconst_B; Lb: ifeq Lx
+//                     where Lb is used only here: the 0/1 value built
+//                     by a comparison, && or || is tested directly by
+//                     sending every path to its destination
+//   branch-over-goto  ifXX La; goto Lx; La:  =>  if!XX Lx; La:
+//   jump-to-next      goto L; L:  =>  L:   (ifXX L; L:  =>  pop; L:)
+//   unreachable       removes the instructions between a goto (or a
+//                     return) and the next label
+//   push-pop          iload n; pop, iconst_c; pop, dup; pop, ... =>
+//   dup-store-pop     dup; istore n; pop  =>  istore n
+//   load-store        iload n; istore n  =>
+//   constant          iconst_0; iadd  =>    iconst_1; imul  =>
+//                     ineg; ineg  =>        ldc 3  =>  iconst_3
+//   constant-branch   iconst_1; ifne L  =>  goto L
+//                     iconst_1; ifeq L  =>
+//   nop               removes the nop's that are not the target of
+//                     a jump to the end of the code
+//
+// The rules only remove operand stack entries, so the .limit stack
+// computed by the emitter remains a valid bound.
+
+package VC.CodeGen;
+
+public final class Peephole {
+
+  // The size of the sliding window
+  private static final int WINDOW = 6;
+
+  private abstract class Rule {
+    final String name;
+    boolean enabled = true;
+    int hits;
+
+    Rule(String name) {
+      this.name = name;
+    }
+
+    // Tries to rewrite the window w and returns true if it did so.
+    // w[k] is the index of the k-th instruction or label from the start
+    // of the window and -1 if the method ends before it.
+    abstract boolean apply(int[] w);
+  }
+
+  private final Rule[] rules = {
+
+    new Rule("bool-branch") {
+      boolean apply(int[] w) {
+        Integer a = intConstant(w[0]), b = intConstant(w[3]);
+        if (a == null || b == null || (a != 0 && a != 1) || b != 1 - a
+            || op(w[1]) != JVM.GOTO || ! isLabel(w[2]) || ! isLabel(w[4]))
+          return false;
+        int la = label(w[2]), lb = label(w[4]);
+        if (target(w[1]) != lb || refs[lb] != 1
+            || ! (op(w[5]) == JVM.IFEQ || op(w[5]) == JVM.IFNE))
+          return false;
+        int lx = target(w[5]);
+        boolean ifeq = op(w[5]) == JVM.IFEQ;
+        // the paths with the value B come from the jumps to La and
+        // the path with the value A falls through to the goto
+        if ((b == 0) == ifeq)
+          for (int i = start; i < end; i++)
+            if (isBranch(i) && target(i) == la)
+              replace(i, op(i), lx);
+        if ((a == 0) == ifeq)
+          replace(w[1], JVM.GOTO, lx);
+        else
+          delete(w[1]);
+        delete(w[0]);
+        delete(w[3]);
+        delete(w[5]);
+        return true;
+      }
+    },
+
+    new Rule("branch-over-goto") {
+      boolean apply(int[] w) {
+        if (! isConditional(w[0]) || op(w[1]) != JVM.GOTO || ! isLabel(w[2])
+            || target(w[0]) != label(w[2]))
+          return false;
+        replace(w[0], JVM.negate(op(w[0])), target(w[1]));
+        delete(w[1]);
+        return true;
+      }
+    },
+
+    new Rule("jump-to-next") {
+      boolean apply(int[] w) {
+        if (! isBranch(w[0]))
+          return false;
+        for (int k = 1; k < WINDOW && isLabel(w[k]); k++)
+          if (label(w[k]) == target(w[0])) {
+            if (op(w[0]) == JVM.GOTO)
+              delete(w[0]);
+            else if (op(w[0]) >= JVM.IF_ICMPEQ && op(w[0]) <= JVM.IF_ICMPLE)
+              replace(w[0], JVM.POP2, 0);
+            else
+              replace(w[0], JVM.POP, 0);
+            return true;
+          }
+        return false;
+      }
+    },
+
+    new Rule("unreachable") {
+      boolean apply(int[] w) {
+        int op = op(w[0]);
+        if (! (op == JVM.GOTO || JVM.isReturn(op)) || w[1] < 0 || isLabel(w[1]))
+          return false;
+        delete(w[1]);
+        return true;
+      }
+    },
+
+    new Rule("push-pop") {
+      boolean apply(int[] w) {
+        if (! isPush(w[0]) || op(w[1]) != JVM.POP)
+          return false;
+        delete(w[0]);
+        delete(w[1]);
+        return true;
+      }
+    },
+
+    new Rule("dup-store-pop") {
+      boolean apply(int[] w) {
+        if (op(w[0]) != JVM.DUP || ! JVM.isStore(op(w[1])) || op(w[2]) != JVM.POP)
+          return false;
+        delete(w[0]);
+        delete(w[2]);
+        return true;
+      }
+    },
+
+    new Rule("load-store") {
+      boolean apply(int[] w) {
+        // xload and xstore are ILOAD + k and ISTORE + k
+        if (! JVM.isLoad(op(w[0])) || op(w[1]) - JVM.ISTORE != op(w[0]) - JVM.ILOAD
+            || code.arg(w[0]) != code.arg(w[1]))
+          return false;
+        delete(w[0]);
+        delete(w[1]);
+        return true;
+      }
+    },
+
+    new Rule("constant") {
+      boolean apply(int[] w) {
+        Integer c = intConstant(w[0]);
+        int op = op(w[1]);
+        if ((c != null && c == 0 && (op == JVM.IADD || op == JVM.ISUB
+                                     || op == JVM.ISHL || op == JVM.ISHR))
+            || (c != null && c == 1 && (op == JVM.IMUL || op == JVM.IDIV))
+            || (op(w[0]) == JVM.INEG && op == JVM.INEG)) {
+          delete(w[0]);
+          delete(w[1]);
+          return true;
+        }
+        return op(w[0]) == JVM.LDC && smallConstant(w[0]);
+      }
+    },
+
+    new Rule("constant-branch") {
+      boolean apply(int[] w) {
+        Integer c = intConstant(w[0]);
+        int op = op(w[1]);
+        if (c == null || ! (op == JVM.IFEQ || op == JVM.IFNE))
+          return false;
+        if ((c == 0) == (op == JVM.IFEQ))
+          replace(w[1], JVM.GOTO, target(w[1]));
+        else
+          delete(w[1]);
+        delete(w[0]);
+        return true;
+      }
+    },
+
+    new Rule("nop") {
+      boolean apply(int[] w) {
+        if (op(w[0]) != JVM.NOP)
+          return false;
+        if (w[1] < 0) {
+          // keep it if some jump goes to the end of the code
+          for (int i = w[0] - 1; i >= start && (! isCode(i) || isLabel(i)); i--)
+            if (isLabel(i) && refs[label(i)] > 0)
+              return false;
+        }
+        delete(w[0]);
+        return true;
+      }
+    }
+  };
+
+  // The code being optimised and the lines of the method being
+  // optimised (removed lines are DELETED)
+  private CodeBuffer code;
+  private int start, end;
+
+  // The number of jumps to every label of the method
+  private int[] refs;
+
+  // Enables the rules given by a comma-separated list of names ("all"
+  // for every rule) and returns false if there is no such rule.
+
+  public boolean enable(String names) {
+    for (Rule r : rules)
+      r.enabled = false;
+    for (String name : names.split(",")) {
+      boolean found = false;
+      for (Rule r : rules)
+        if (name.equals("all") || name.equals(r.name)) {
+          r.enabled = true;
+          found = true;
+        }
+      if (! found)
+        return false;
+    }
+    return true;
+  }
+
+  // Prints the number of times every rule has been applied
+
+  public void report() {
+    System.out.println("Peephole optimisations:");
+    for (Rule r : rules)
+      if (r.enabled)
+        System.out.println("\t" + r.name + ": " + r.hits);
+  }
+
+  // Optimises every method in code
+
+  public void optimise(CodeBuffer code) {
+    this.code = code;
+    start = 0;
+    while (start < code.size()) {
+      if (code.op(start) == JVM.METHOD_START) {
+        end = start + 1;
+        while (end < code.size() && code.op(end - 1) != JVM.METHOD_END)
+          end++;
+        optimiseMethod();
+        start = end;
+      } else
+        start++;
+    }
+
+    int[] lines = new int[code.size()];
+    int n = 0;
+    for (int i = 0; i < code.size(); i++)
+      if (code.op(i) != JVM.DELETED)
+        lines[n++] = i;
+    code.rebuild(lines, n);
+  }
+
+  private void optimiseMethod() {
+    int maxLabel = 0;
+    for (int i = start; i < end; i++)
+      if (isLabel(i) || isBranch(i))
+        maxLabel = Math.max(maxLabel, code.arg(i));
+    refs = new int[maxLabel + 1];
+    for (int i = start; i < end; i++)
+      if (isBranch(i))
+        refs[target(i)]++;
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = start; i < end; i++) {
+        if (! isCode(i))
+          continue;
+        int[] w = window(i);
+        for (Rule r : rules)
+          if (r.enabled && r.apply(w)) {
+            r.hits++;
+            changed = true;
+            break;
+          }
+      }
+    }
+  }
+
+  private int[] window(int i) {
+    int[] w = new int[WINDOW];
+    for (int k = 0; k < WINDOW; k++) {
+      while (i < end && ! isCode(i))
+        i++;
+      w[k] = i < end ? i : -1;
+      i++;
+    }
+    return w;
+  }
+
+  // Editing the code while keeping the label counts
+
+  private void delete(int i) {
+    if (isBranch(i))
+      refs[target(i)]--;
+    code.setOp(i, JVM.DELETED);
+  }
+
+  private void replace(int i, int op, int arg) {
+    delete(i);
+    code.setOp(i, op);
+    code.setArg(i, arg);
+    if (isBranch(i))
+      refs[target(i)]++;
+  }
+
+  // Inspecting the code. All of these accept -1 (no instruction).
+
+  // true if i is an instruction or a label
+
+  private boolean isCode(int i) {
+    return i >= 0 && (JVM.isInstruction(code.op(i)) || code.op(i) == JVM.LABEL);
+  }
+
+  private boolean isLabel(int i) {
+    return i >= 0 && code.op(i) == JVM.LABEL;
+  }
+
+  private int label(int i) {
+    return code.arg(i);
+  }
+
+  // the opcode of i and DELETED if it is no instruction
+
+  private int op(int i) {
+    if (i < 0 || ! JVM.isInstruction(code.op(i)))
+      return JVM.DELETED;
+    return code.op(i);
+  }
+
+  private int target(int i) {
+    return code.arg(i);
+  }
+
+  private boolean isBranch(int i) {
+    return JVM.isBranch(op(i));
+  }
+
+  private boolean isConditional(int i) {
+    return JVM.isConditional(op(i));
+  }
+
+  // true if i only pushes a value onto the operand stack
+
+  private boolean isPush(int i) {
+    int op = op(i);
+    return JVM.isLoad(op) || intConstant(i) != null || op == JVM.LDC
+      || (op >= JVM.FCONST_0 && op <= JVM.FCONST_2) || op == JVM.DUP || op == JVM.GETSTATIC;
+  }
+
+  // the value pushed by an int constant instruction and null if i is
+  // no such instruction
+
+  private Integer intConstant(int i) {
+    int op = op(i);
+    if (op >= JVM.ICONST_M1 && op <= JVM.ICONST_5)
+      return op - JVM.ICONST_0;
+    if (op == JVM.BIPUSH || op == JVM.SIPUSH)
+      return code.arg(i);
+    return null;
+  }
+
+  // Replaces the ldc i by the shortest instruction pushing its
+  // constant and returns false if ldc is already the shortest
+
+  private boolean smallConstant(int i) {
+    int c = code.arg(i);
+    if (code.arg2(i) == JVM.LDC_STRING)
+      return false;
+    if (code.arg2(i) == JVM.LDC_FLOAT) {
+      float f = Float.intBitsToFloat(c);
+      if (f == 0.0 && 1 / f > 0)
+        replace(i, JVM.FCONST_0, 0);
+      else if (f == 1.0)
+        replace(i, JVM.FCONST_1, 0);
+      else if (f == 2.0)
+        replace(i, JVM.FCONST_2, 0);
+      else
+        return false;
+    } else if (c >= -1 && c <= 5)
+      replace(i, JVM.ICONST_0 + c, 0);
+    else if (c >= -128 && c <= 127)
+      replace(i, JVM.BIPUSH, c);
+    else if (c >= -32768 && c <= 32767)
+      replace(i, JVM.SIPUSH, c);
+    else
+      return false;
+    return true;
+  }
+
+}
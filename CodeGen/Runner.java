@@ -0,0 +1,79 @@
+/*
+ * Runner.java
+ */
+
+// Runs a class generated by the Emitter in the JVM of the compiler,
+// without writing it into a file and starting another JVM.
+//
+// The class is defined by a ClassLoader of its own, whose parent is
+// the loader of the compiler. Hence, the generated code calls the
+// VC.lang.System loaded with the compiler, and the programs print to
+// the same System.out. Every run has a new loader, so the classes of
+// different programs (or of different runs of one program) are kept
+// apart even if they have the same name.
+
+package VC.CodeGen;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+public final class Runner {
+
+  private static final class Loader extends ClassLoader {
+
+    private final String name;
+    private final byte[] classFile;
+
+    Loader(String name, byte[] classFile) {
+      super(Runner.class.getClassLoader());
+      this.name = name;
+      this.classFile = classFile;
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      if (! name.equals(this.name))
+        throw new ClassNotFoundException(name);
+      return defineClass(name, classFile, 0, classFile.length);
+    }
+  }
+
+  private Runner() {
+  }
+
+  // Runs the main method of the class and returns the exit status as
+  // the java launcher would: 0 if main returns and 1 if it throws an
+  // exception, which is reported on System.err.
+
+  public static int run(String classname, byte[] classFile, String[] args) {
+    String name = classname.replace('/', '.');
+    try {
+      Class<?> c = new Loader(name, classFile).loadClass(name);
+      Method main = c.getMethod("main", String[].class);
+      main.invoke(null, (Object) args);
+      return 0;
+    } catch (InvocationTargetException e) {
+      System.out.flush();
+      Throwable t = e.getCause();
+      // leave out the frames of the reflective call and of the compiler
+      StackTraceElement[] trace = t.getStackTrace();
+      int n = 0;
+      while (n < trace.length && ! trace[n].getClassName().startsWith("jdk.internal.reflect.")
+             && ! trace[n].getClassName().equals(Method.class.getName()))
+        n++;
+      t.setStackTrace(Arrays.copyOf(trace, n));
+      System.err.print("Exception in thread \"main\" ");
+      t.printStackTrace();
+      return 1;
+    } catch (ReflectiveOperationException e) {
+      System.out.println ("Error running " + name + ": " + e);
+      return 1;
+    } catch (LinkageError e) {
+      System.out.println ("Error running " + name + ": " + e);
+      return 1;
+    } finally {
+      System.out.flush();
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * SlotAllocator.java
+ */
+
+// Reassigns the local variable indices of a method after its code
+// has been generated.
+//
+// Frame.getNewIndex() gives every local variable (and every temporary
+// introduced by the optimiser) its own index. Here, the indices used
+// by the instructions of a method are treated as virtual registers:
+//
+//   (1) The live variables at every instruction are computed by the
+//       usual backward dataflow analysis over the control flow graph
+//       given by the labels and branches in the code.
+//   (2) Every variable is given the live interval [first, last] that
+//       covers all the instructions where it is defined or live.
+//   (3) The variables are assigned indices in order of decreasing
+//       "hotness", i.e., the number of times they are loaded or stored
+//       weighted by 10^(loop nesting depth). Every variable gets the
+//       smallest index not used by any variable whose interval
+//       overlaps its own. Hence, variables in disjoint scopes or with
+//       disjoint live ranges share indices, and the hottest variables
+//       tend to get indices 0 - 3 with their compact instructions
+//       such as iload_1 and istore_2.
+//
+// The indices below "fixed" (this or argv, and the parameters) are
+// determined by the JVM calling convention and remain unchanged,
+// although other variables may use them when they are dead.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+final class SlotAllocator {
+
+  private final CodeBuffer code;
+  private final int start, end;  // the code of the method is lines start .. end - 1
+  private final int n;
+
+  // The variable accessed by every instruction and whether it is a load
+  private final int[] slot;
+  private final boolean[] isLoad;
+
+  private final int[][] successors;
+
+  private SlotAllocator(CodeBuffer code, int start, int end) {
+    this.code = code;
+    this.start = start;
+    this.end = end;
+    n = end - start;
+    slot = new int[n];
+    isLoad = new boolean[n];
+    successors = new int[n][];
+  }
+
+  // Reassigns the indices of the variables in the lines start .. end - 1
+  // and returns the number of local variables needed by the method.
+
+  static int allocate(CodeBuffer code, int start, int end, int fixed) {
+    return new SlotAllocator(code, start, end).allocate(fixed);
+  }
+
+  private int allocate(int fixed) {
+    HashMap<Integer, Integer> labels = new HashMap<Integer, Integer>();
+    int numVars = fixed;
+    for (int i = 0; i < n; i++) {
+      int op = code.op(start + i);
+      slot[i] = -1;
+      if (op == JVM.LABEL)
+        labels.put(code.arg(start + i), i);
+      if (JVM.isLoadOrStore(op) || op == JVM.IINC) {
+        slot[i] = code.arg(start + i);
+        // iinc both uses and defines the variable
+        isLoad[i] = ! JVM.isStore(op);
+        numVars = Math.max(numVars, slot[i] + 1);
+      }
+    }
+
+    // The control flow graph and the loop nesting depths
+    int[] depth = new int[n];
+    for (int i = 0; i < n; i++) {
+      int op = code.op(start + i);
+      Integer target = JVM.isBranch(op) ? labels.get(code.arg(start + i)) : null;
+      if (op == JVM.GOTO)
+        successors[i] = new int[] { target };
+      else if (JVM.isConditional(op))
+        successors[i] = new int[] { i + 1, target };
+      else if (JVM.isReturn(op) || i + 1 == n)
+        successors[i] = new int[0];
+      else
+        successors[i] = new int[] { i + 1 };
+
+      if (target != null && target <= i)
+        for (int j = target; j <= i; j++)
+          depth[j]++;
+    }
+
+    // Liveness analysis
+    BitSet[] liveIn = new BitSet[n];
+    for (int i = 0; i < n; i++)
+      liveIn[i] = new BitSet(numVars);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = n - 1; i >= 0; i--) {
+        BitSet live = new BitSet(numVars);
+        for (int s : successors[i])
+          if (s < n)
+            live.or(liveIn[s]);
+        if (slot[i] >= 0) {
+          if (isLoad[i])
+            live.set(slot[i]);
+          else
+            live.clear(slot[i]);
+        }
+        if (! live.equals(liveIn[i])) {
+          liveIn[i] = live;
+          changed = true;
+        }
+      }
+    }
+
+    // Live intervals and weights
+    final int[] first = new int[numVars];
+    final int[] last = new int[numVars];
+    final long[] weight = new long[numVars];
+    Arrays.fill(first, Integer.MAX_VALUE);
+    Arrays.fill(last, -1);
+    for (int v = 0; v < fixed; v++)
+      first[v] = 0;  // the parameters are defined on entry
+    for (int i = 0; i < n; i++) {
+      for (int v = liveIn[i].nextSetBit(0); v >= 0; v = liveIn[i].nextSetBit(v + 1)) {
+        first[v] = Math.min(first[v], i);
+        last[v] = Math.max(last[v], i);
+      }
+      if (slot[i] >= 0) {
+        first[slot[i]] = Math.min(first[slot[i]], i);
+        last[slot[i]] = Math.max(last[slot[i]], i);
+        weight[slot[i]] += (long) Math.pow(10, Math.min(depth[i], 6));
+      }
+    }
+
+    // Assign the indices, the fixed ones first and then the others
+    // in order of decreasing weight
+    int[] newSlot = new int[numVars];
+    ArrayList<ArrayList<Integer>> assigned = new ArrayList<ArrayList<Integer>>();
+    for (int v = 0; v < fixed; v++) {
+      newSlot[v] = v;
+      assigned.add(new ArrayList<Integer>());
+      if (last[v] >= 0)
+        assigned.get(v).add(v);
+    }
+
+    ArrayList<Integer> vars = new ArrayList<Integer>();
+    for (int v = fixed; v < numVars; v++)
+      if (last[v] >= 0)
+        vars.add(v);
+    Collections.sort(vars, new Comparator<Integer>() {
+      public int compare(Integer v1, Integer v2) {
+        if (weight[v1] != weight[v2])
+          return weight[v1] > weight[v2] ? -1 : 1;
+        return v1 - v2;
+      }
+    });
+
+    int limit = fixed;
+    for (int v : vars) {
+      int s = 0;
+      while (s < assigned.size() && overlaps(v, assigned.get(s), first, last))
+        s++;
+      if (s == assigned.size())
+        assigned.add(new ArrayList<Integer>());
+      assigned.get(s).add(v);
+      newSlot[v] = s;
+      limit = Math.max(limit, s + 1);
+    }
+
+    // Rewrite the loads, stores, iinc's and .var directives
+    for (int i = 0; i < n; i++) {
+      if (slot[i] >= 0)
+        code.setArg(start + i, newSlot[slot[i]]);
+      else if (code.op(start + i) == JVM.VAR) {
+        int v = code.arg(start + i);
+        if (v >= numVars || (v >= fixed && last[v] < 0)) {
+          // the variable has no index
+          code.setArg(start + i, code.string("; unused: " + code.toString(start + i)));
+          code.setOp(start + i, JVM.TEXT);
+        } else
+          code.setArg(start + i, newSlot[v]);
+      }
+    }
+    return limit;
+  }
+
+  private static boolean overlaps(int v, ArrayList<Integer> others, int[] first, int[] last) {
+    for (int w : others)
+      if (first[v] <= last[w] && first[w] <= last[v])
+        return true;
+    return false;
+  }
+
+}
@@ -0,0 +1,291 @@
+/*
+ * StackMap.java
+ */
+
+// Computes the types of the local variables and the operand stack
+// before every instruction of a method, as needed by the StackMapTable
+// attribute of a class file (version 50 and later).
+//
+// The types are the verification types of the JVM, written as
+//
+//   I, F                  int (also boolean) and float
+//   T                     top (an unusable value)
+//   [I, Ljava/lang/String;, ...
+//                         arrays and objects (as descriptors)
+//   Un                    the uninitialised object created by the
+//                         instruction with the index n
+//
+// The frame on entry is given by the descriptor of the method. The
+// frames are propagated along the control flow edges by simulating
+// the effect of every instruction, until nothing changes. At a join,
+// a local variable with different types in the incoming frames gets
+// the type T. (The slots may be shared by variables of different
+// types after the local variables have been reallocated.) The operand
+// stacks must have the same heights at a join, and do, since the code
+// generator balances the stack of every statement.
+//
+// The largest operand stack seen is the exact max_stack of the method.
+// Instructions that are never reached have no frame.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+final class StackMap {
+
+  static final class Frame {
+    final String[] locals;
+    final ArrayList<String> stack;
+
+    Frame(String[] locals, ArrayList<String> stack) {
+      this.locals = locals;
+      this.stack = stack;
+    }
+
+    Frame copy() {
+      return new Frame(locals.clone(), new ArrayList<String>(stack));
+    }
+
+    // the locals without the trailing T's
+
+    ArrayList<String> usedLocals() {
+      int n = locals.length;
+      while (n > 0 && locals[n - 1].equals("T"))
+        n--;
+      return new ArrayList<String>(Arrays.asList(locals).subList(0, n));
+    }
+  }
+
+  // The code, the instructions (its lines) and the instruction at every
+  // label
+  private final CodeBuffer code;
+  private final ArrayList<Integer> insts;
+  private final HashMap<Integer, Integer> labels;
+
+  // The frames before the instructions (null if not reached)
+  final Frame[] frames;
+  final Frame entry;
+  int maxStack;
+
+  private StackMap(CodeBuffer code, ArrayList<Integer> insts, HashMap<Integer, Integer> labels,
+                   Frame entry) {
+    this.code = code;
+    this.insts = insts;
+    this.labels = labels;
+    this.entry = entry;
+    frames = new Frame[insts.size()];
+  }
+
+  // Analyses the instructions of a method, where labels maps every
+  // label to the index (in insts) of the instruction that follows it.
+
+  static StackMap analyse(CodeBuffer code, ArrayList<Integer> insts,
+                          HashMap<Integer, Integer> labels, String thisClass, String descriptor, boolean isStatic, int maxLocals) {
+    String[] locals = new String[maxLocals];
+    Arrays.fill(locals, "T");
+    int n = 0;
+    if (! isStatic)
+      locals[n++] = "L" + thisClass + ";";
+    for (String t : parameters(descriptor))
+      locals[n++] = type(t);
+
+    StackMap m = new StackMap(code, insts, labels, new Frame(locals, new ArrayList<String>()));
+    m.run();
+    return m;
+  }
+
+  private void run() {
+    LinkedList<Integer> worklist = new LinkedList<Integer>();
+    if (! insts.isEmpty()) {
+      frames[0] = entry.copy();
+      worklist.add(0);
+    }
+    while (! worklist.isEmpty()) {
+      int i = worklist.removeFirst();
+      Frame f = frames[i].copy();
+      maxStack = Math.max(maxStack, f.stack.size());
+      int line = insts.get(i);
+      execute(i, line, f);
+      maxStack = Math.max(maxStack, f.stack.size());
+
+      int op = code.op(line);
+      if (JVM.isBranch(op))
+        if (merge(labels.get(code.arg(line)), f))
+          worklist.add(labels.get(code.arg(line)));
+      if (! (op == JVM.GOTO || JVM.isReturn(op)) && i + 1 < insts.size())
+        if (merge(i + 1, f))
+          worklist.add(i + 1);
+    }
+  }
+
+  // Merges f into the frame before the instruction i and returns true
+  // if it has changed
+
+  private boolean merge(int i, Frame f) {
+    if (frames[i] == null) {
+      frames[i] = f.copy();
+      return true;
+    }
+    Frame g = frames[i];
+    if (g.stack.size() != f.stack.size())
+      error("inconsistent stack heights at " + code.toString(insts.get(i)));
+    boolean changed = false;
+    for (int k = 0; k < g.locals.length; k++)
+      if (! g.locals[k].equals(f.locals[k]) && ! g.locals[k].equals("T")) {
+        g.locals[k] = "T";
+        changed = true;
+      }
+    for (int k = 0; k < g.stack.size(); k++)
+      if (! g.stack.get(k).equals(f.stack.get(k)))
+        error("inconsistent stack types at " + code.toString(insts.get(i)));
+    return changed;
+  }
+
+  // The effect of the instruction i (the line of code) on a frame
+
+  private void execute(int i, int line, Frame f) {
+    int op = code.op(line);
+    ArrayList<String> stack = f.stack;
+
+    switch (op) {
+    case JVM.ICONST_M1: case JVM.ICONST_0: case JVM.ICONST_1: case JVM.ICONST_2:
+    case JVM.ICONST_3: case JVM.ICONST_4: case JVM.ICONST_5: case JVM.BIPUSH: case JVM.SIPUSH:
+    case JVM.ILOAD:
+      stack.add("I");
+      break;
+    case JVM.FCONST_0: case JVM.FCONST_1: case JVM.FCONST_2: case JVM.FLOAD:
+      stack.add("F");
+      break;
+    case JVM.LDC:
+      stack.add(code.arg2(line) == JVM.LDC_INT ? "I"
+                : code.arg2(line) == JVM.LDC_FLOAT ? "F" : "Ljava/lang/String;");
+      break;
+    case JVM.ALOAD:
+      stack.add(f.locals[code.arg(line)]);
+      break;
+    case JVM.ISTORE: case JVM.FSTORE: case JVM.ASTORE:
+      f.locals[code.arg(line)] = pop(stack);
+      break;
+    case JVM.IALOAD: case JVM.BALOAD: case JVM.FCMPG: case JVM.FCMPL:
+    case JVM.IADD: case JVM.ISUB: case JVM.IMUL: case JVM.IDIV:
+    case JVM.ISHL: case JVM.ISHR: case JVM.IAND: case JVM.IXOR:
+      replace(stack, 2, "I");
+      break;
+    case JVM.FALOAD: case JVM.FADD: case JVM.FSUB: case JVM.FMUL: case JVM.FDIV:
+      replace(stack, 2, "F");
+      break;
+    case JVM.IASTORE: case JVM.FASTORE: case JVM.BASTORE:
+      replace(stack, 3, null);
+      break;
+    case JVM.POP: case JVM.IRETURN: case JVM.FRETURN: case JVM.PUTSTATIC:
+    case JVM.IFEQ: case JVM.IFNE: case JVM.IFLT: case JVM.IFGE: case JVM.IFGT: case JVM.IFLE:
+      pop(stack);
+      break;
+    case JVM.POP2: case JVM.IF_ICMPEQ: case JVM.IF_ICMPNE: case JVM.IF_ICMPLT:
+    case JVM.IF_ICMPGE: case JVM.IF_ICMPGT: case JVM.IF_ICMPLE:
+      replace(stack, 2, null);
+      break;
+    case JVM.DUP:
+      stack.add(stack.get(stack.size() - 1));
+      break;
+    case JVM.DUP_X2:
+      stack.add(stack.size() - 3, stack.get(stack.size() - 1));
+      break;
+    case JVM.INEG: case JVM.FNEG: case JVM.IINC: case JVM.NOP: case JVM.GOTO: case JVM.RETURN:
+      break;
+    case JVM.I2F:
+      replace(stack, 1, "F");
+      break;
+    case JVM.GETSTATIC: {
+      String operand = code.string(code.arg(line));
+      stack.add(type(operand.substring(operand.indexOf(' ') + 1)));
+      break;
+    }
+    case JVM.INVOKESTATIC: case JVM.INVOKESPECIAL: case JVM.INVOKEVIRTUAL: {
+      String operand = code.string(code.arg(line));
+      int paren = operand.indexOf('(');
+      String descriptor = operand.substring(paren);
+      replace(stack, parameters(descriptor).size(), null);
+      if (op != JVM.INVOKESTATIC) {
+        String receiver = pop(stack);
+        if (receiver.startsWith("U")) {
+          // the object has been initialised by <init>
+          String owner = "L" + operand.substring(0, operand.lastIndexOf('/', paren)) + ";";
+          for (int k = 0; k < f.locals.length; k++)
+            if (f.locals[k].equals(receiver))
+              f.locals[k] = owner;
+          for (int k = 0; k < stack.size(); k++)
+            if (stack.get(k).equals(receiver))
+              stack.set(k, owner);
+        }
+      }
+      String result = descriptor.substring(descriptor.indexOf(')') + 1);
+      if (! result.equals("V"))
+        stack.add(type(result));
+      break;
+    }
+    case JVM.NEW:
+      stack.add("U" + i);
+      break;
+    case JVM.NEWARRAY:
+      replace(stack, 1, code.arg(line) == JVM.T_FLOAT ? "[F"
+              : code.arg(line) == JVM.T_BOOLEAN ? "[Z" : "[I");
+      break;
+    default:
+      error("unknown instruction " + code.toString(line));
+    }
+  }
+
+  private String pop(ArrayList<String> stack) {
+    if (stack.isEmpty())
+      error("stack underflow");
+    return stack.remove(stack.size() - 1);
+  }
+
+  // Pops n values and pushes t (if not null)
+
+  private void replace(ArrayList<String> stack, int n, String t) {
+    for (int k = 0; k < n; k++)
+      pop(stack);
+    if (t != null)
+      stack.add(t);
+  }
+
+  private static void error(String message) {
+    throw new CodeGenException("Error writing class file: " + message);
+  }
+
+  // Descriptors
+
+  // the verification type of a field descriptor
+
+  static String type(String descriptor) {
+    char c = descriptor.charAt(0);
+    if (c == 'Z' || c == 'B' || c == 'C' || c == 'S' || c == 'I')
+      return "I";
+    if (c == 'F')
+      return "F";
+    return descriptor;
+  }
+
+  // the parameter types of a method descriptor
+
+  static ArrayList<String> parameters(String descriptor) {
+    ArrayList<String> types = new ArrayList<String>();
+    int k = 1;
+    while (descriptor.charAt(k) != ')') {
+      int start = k;
+      while (descriptor.charAt(k) == '[')
+        k++;
+      if (descriptor.charAt(k) == 'L')
+        k = descriptor.indexOf(';', k);
+      k++;
+      types.add(descriptor.substring(start, k));
+    }
+    return types;
+  }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * ValueNumbering.java
+ */
+
+// Common subexpression elimination by value numbering.
+//
+// The body of a function is traversed in evaluation order. Every
+// expression is given a value number such that two expressions with
+// the same value number are guaranteed to compute the same value:
+//
+//   (1) A variable has the value number of the value last assigned
+//       to it. An assignment (or a declaration) gives the variable the
+//       value number of the assigned expression.
+//   (2) An arithmetic expression op(e1, e2) has the value number
+//       associated with the key (op, vn(e1), vn(e2)) in the table of
+//       available expressions, or a new one if there is no such key.
+//   (3) An array element a[e] is looked up by (a, vn(e), memory),
+//       where memory is a version number of the contents of all
+//       arrays. It is incremented by every array store and every call.
+//   (4) A call may modify any global variable. Calls, comparisons and
+//       logical operators are given new value numbers.
+//
+// An arithmetic expression or array element whose key is already in
+// the table recomputes the value of the earlier expression that put
+// the key there (the "definition"). The definition is evaluated first
+// in every execution, so the code generator keeps its value in a new
+// local variable and loads it instead of re-evaluating the expression.
+//
+// The table is used across basic blocks in the way dominance is
+// determined by the structure of the AST:
+//
+//   - Expressions computed before an if (or while, for, && and ||)
+//     remain available in it and after it. Expressions computed in a
+//     conditionally executed part are not available after it, and a
+//     variable assigned in there has a new value number afterwards.
+//   - Before a loop is entered, every variable assigned in the loop
+//     is given a new value number (and so is memory if the loop
+//     stores into an array or calls a function), since the loop body
+//     may be executed repeatedly.
+
+package VC.CodeGen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import VC.ASTs.*;
+
+final class ValueNumbering extends ASTWalker {
+
+  // Reused expressions and the definitions whose values they reuse
+  final HashMap<Expr, Expr> reuses = new HashMap<Expr, Expr>();
+  final HashSet<Expr> defs = new HashSet<Expr>();
+
+  private int nextNumber = 0;
+
+  // The current value numbers of the variables
+  private HashMap<Decl, Integer> vars = new HashMap<Decl, Integer>();
+
+  // The current version of the contents of all arrays
+  private int memory = newNumber();
+
+  // The table of available expressions: key -> value number. The keys
+  // are added to "added" so that they can be removed at a join.
+  private final HashMap<String, Integer> table = new HashMap<String, Integer>();
+  private final ArrayList<String> added = new ArrayList<String>();
+
+  // The expression that first computed a value number
+  private final HashMap<Integer, Expr> firstComputed = new HashMap<Integer, Expr>();
+
+  private ValueNumbering() {
+  }
+
+  static ValueNumbering analyse(FuncDecl ast) {
+    ValueNumbering vn = new ValueNumbering();
+    ast.S.visit(vn, null);
+    return vn;
+  }
+
+  private int newNumber() {
+    return nextNumber++;
+  }
+
+  private int number(Object o) {
+    return o == null ? newNumber() : (Integer) o;
+  }
+
+  private int varNumber(Decl d) {
+    Integer n = vars.get(d);
+    if (n == null) {
+      n = newNumber();
+      vars.put(d, n);
+    }
+    return n;
+  }
+
+  // Looks up the key of a CSE candidate e
+
+  private int lookup(String key, Expr e) {
+    Integer n = table.get(key);
+    if (n != null) {
+      Expr def = firstComputed.get(n);
+      if (def != null) {
+        reuses.put(e, def);
+        defs.add(def);
+      }
+      return n;
+    }
+    n = newNumber();
+    table.put(key, n);
+    added.add(key);
+    firstComputed.put(n, e);
+    return n;
+  }
+
+  // State saved at the start of a conditionally executed part
+
+  private final class State {
+    final HashMap<Decl, Integer> vars = new HashMap<Decl, Integer>(ValueNumbering.this.vars);
+    final int memory = ValueNumbering.this.memory;
+    final int added = ValueNumbering.this.added.size();
+  }
+
+  private void restore(State s) {
+    vars = new HashMap<Decl, Integer>(s.vars);
+    memory = s.memory;
+    while (added.size() > s.added)
+      table.remove(added.remove(added.size() - 1));
+  }
+
+  // Restores s at the join of a conditional part with the states at
+  // the ends of its branches. A variable (or memory) that was changed
+  // in some branch gets a new value number.
+
+  private void join(State s, State[] ends) {
+    restore(s);
+    for (State end : ends) {
+      for (Decl d : end.vars.keySet())
+        if (! end.vars.get(d).equals(s.vars.get(d)))
+          vars.put(d, newNumber());
+      for (Decl d : s.vars.keySet())
+        if (! end.vars.containsKey(d))
+          vars.remove(d);
+      if (end.memory != s.memory)
+        memory = newNumber();
+    }
+  }
+
+  // Invalidates everything that may be changed by the given loop parts
+
+  private void enterLoop(AST... parts) {
+    final HashSet<Decl> assigned = new HashSet<Decl>();
+    final boolean[] writes = new boolean[2]; // [0]: arrays, [1]: calls
+    ASTWalker effects = new ASTWalker() {
+      public Object visitAssignExpr(AssignExpr ast, Object o) {
+        if (ast.E1 instanceof ArrayExpr)
+          writes[0] = true;
+        else if (ast.E1 instanceof VarExpr)
+          assigned.add((Decl) ((SimpleVar) ((VarExpr) ast.E1).V).I.decl);
+        return super.visitAssignExpr(ast, o);
+      }
+      public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+        assigned.add(ast);
+        return super.visitLocalVarDecl(ast, o);
+      }
+      public Object visitCallExpr(CallExpr ast, Object o) {
+        writes[1] = true;
+        return super.visitCallExpr(ast, o);
+      }
+    };
+    for (AST part : parts)
+      part.visit(effects, null);
+
+    for (Decl d : assigned)
+      vars.remove(d);
+    if (writes[1])
+      killGlobals();
+    if (writes[0] || writes[1])
+      memory = newNumber();
+  }
+
+  private void killGlobals() {
+    for (Decl d : new ArrayList<Decl>(vars.keySet()))
+      if (d instanceof GlobalVarDecl)
+        vars.remove(d);
+  }
+
+  // Statements
+
+  public Object visitIfStmt(IfStmt ast, Object o) {
+    ast.E.visit(this, o);
+    State s = new State();
+    ast.S1.visit(this, o);
+    State end1 = new State();
+    restore(s);
+    ast.S2.visit(this, o);
+    State end2 = new State();
+    join(s, new State[] { end1, end2 });
+    return null;
+  }
+
+  public Object visitWhileStmt(WhileStmt ast, Object o) {
+    enterLoop(ast.E, ast.S);
+    State s = new State();
+    ast.E.visit(this, o);
+    ast.S.visit(this, o);
+    restore(s);
+    return null;
+  }
+
+  public Object visitForStmt(ForStmt ast, Object o) {
+    ast.E1.visit(this, o);
+    enterLoop(ast.E2, ast.S, ast.E3);
+    State s = new State();
+    ast.E2.visit(this, o);
+    // E3 is also reached by a continue in S
+    State body = new State();
+    ast.S.visit(this, o);
+    join(body, new State[] { new State() });
+    ast.E3.visit(this, o);
+    restore(s);
+    return null;
+  }
+
+  public Object visitLocalVarDecl(LocalVarDecl ast, Object o) {
+    if (ast.T.isArrayType())
+      ((ArrayType) ast.T).E.visit(this, o);
+    if (ast.E.isEmptyExpr() || ast.T.isArrayType()) {
+      ast.E.visit(this, o);
+      vars.put(ast, newNumber());
+    } else
+      vars.put(ast, number(ast.E.visit(this, o)));
+    return null;
+  }
+
+  // Expressions
+
+  public Object visitIntExpr(IntExpr ast, Object o) {
+    return constant("I" + ast.IL.spelling);
+  }
+
+  public Object visitFloatExpr(FloatExpr ast, Object o) {
+    return constant("F" + ast.FL.spelling);
+  }
+
+  public Object visitBooleanExpr(BooleanExpr ast, Object o) {
+    return constant("Z" + ast.BL.spelling);
+  }
+
+  private Integer constant(String key) {
+    Integer n = table.get(key);
+    if (n == null) {
+      n = newNumber();
+      table.put(key, n);  // constants are available everywhere
+    }
+    return n;
+  }
+
+  public Object visitVarExpr(VarExpr ast, Object o) {
+    return varNumber((Decl) ((SimpleVar) ast.V).I.decl);
+  }
+
+  public Object visitUnaryExpr(UnaryExpr ast, Object o) {
+    int n = number(ast.E.visit(this, o));
+    String op = ast.O.spelling;
+    if (op.equals("i-") || op.equals("f-") || op.equals("i2f"))
+      return lookup(op + " " + n, ast);
+    else if (op.equals("i+") || op.equals("f+"))
+      return n;
+    return newNumber();
+  }
+
+  public Object visitBinaryExpr(BinaryExpr ast, Object o) {
+    String op = ast.O.spelling;
+    int n1 = number(ast.E1.visit(this, o));
+
+    if (op.equals("i&&") || op.equals("i||")) {
+      State s = new State();
+      ast.E2.visit(this, o);
+      join(s, new State[] { new State() });
+      return newNumber();
+    }
+
+    int n2 = number(ast.E2.visit(this, o));
+    if (op.equals("i+") || op.equals("i*") || op.equals("f+") || op.equals("f*")) {
+      if (n1 > n2) {
+        int t = n1;
+        n1 = n2;
+        n2 = t;
+      }
+      return lookup(op + " " + n1 + " " + n2, ast);
+    } else if (op.equals("i-") || op.equals("i/") || op.equals("f-") || op.equals("f/"))
+      return lookup(op + " " + n1 + " " + n2, ast);
+    return newNumber();
+  }
+
+  public Object visitArrayExpr(ArrayExpr ast, Object o) {
+    int a = varNumber((Decl) ((SimpleVar) ast.V).I.decl);
+    int i = number(ast.E.visit(this, o));
+    return lookup("[] " + a + " " + i + " " + memory, ast);
+  }
+
+  public Object visitCallExpr(CallExpr ast, Object o) {
+    ast.AL.visit(this, o);
+    killGlobals();
+    memory = newNumber();
+    return newNumber();
+  }
+
+  public Object visitAssignExpr(AssignExpr ast, Object o) {
+    if (ast.E1 instanceof ArrayExpr) {
+      ((ArrayExpr) ast.E1).E.visit(this, o);
+      int n = number(ast.E2.visit(this, o));
+      memory = newNumber();
+      return n;
+    }
+    int n = number(ast.E2.visit(this, o));
+    vars.put((Decl) ((SimpleVar) ((VarExpr) ast.E1).V).I.decl, n);
+    return n;
+  }
+
+  public Object visitInitExpr(InitExpr ast, Object o) {
+    super.visitInitExpr(ast, o);
+    return newNumber();
+  }
+
+}
@@ -0,0 +1,2 @@
+130
+21
@@ -0,0 +1,5 @@
+44
+3.0
+520
+69714
+21
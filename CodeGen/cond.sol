@@ -0,0 +1,4 @@
+39217
+false
+true
+false
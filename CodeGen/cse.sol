@@ -0,0 +1,4 @@
+315
+208
+3.75
+235
@@ -0,0 +1,3 @@
+5678910111213141516171819
+123
+2
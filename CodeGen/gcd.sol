@@ -0,0 +1,3 @@
+Enter an integer: You have entered 30.
+Enter an integer: You have entered 12.
+6
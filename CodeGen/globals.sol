@@ -0,0 +1,4 @@
+9
+4.0
+true
+8
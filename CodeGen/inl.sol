@@ -0,0 +1,4 @@
+11
+4.5
+47
+61
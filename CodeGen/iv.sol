@@ -0,0 +1,7 @@
+-970
+-3
+-18
+-1
+-9
+-144
+18
@@ -0,0 +1,2 @@
+10104
+true
@@ -0,0 +1 @@
+859
@@ -0,0 +1,4 @@
+1.5
+7
+4950
+303
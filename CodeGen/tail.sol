@@ -0,0 +1,3 @@
+705082704
+1
+1000000.0
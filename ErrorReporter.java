@@ -15,21 +15,32 @@ public class ErrorReporter {
   }
 
   public void reportError(String message, String tokenName, SourcePosition pos) {
-    System.out.print ("ERROR: ");
-    System.out.print(pos.lineStart + "(" + pos.charStart + ").." +
-                     pos.lineFinish+ "(" + pos.charFinish + "): ");
+    System.out.println(error(message, tokenName, pos));
+    numErrors++;
+  }
+
+  public void reportRestriction(String message) {
+    System.out.println(restriction(message));
+  }
+
+  // The lines printed for an error (with every % in the message
+  // replaced by tokenName) and for a restriction
+
+  public static String error(String message, String tokenName, SourcePosition pos) {
+    StringBuilder s = new StringBuilder("ERROR: ");
+    s.append(pos.lineStart + "(" + pos.charStart + ").." +
+             pos.lineFinish+ "(" + pos.charFinish + "): ");
 
     for (int p = 0; p < message.length(); p++)
     if (message.charAt(p) == '%')
-      System.out.print(tokenName);
+      s.append(tokenName);
     else
-      System.out.print(message.charAt(p));
+      s.append(message.charAt(p));
 
-    System.out.println();
-    numErrors++;
+    return s.toString();
   }
 
-  public void reportRestriction(String message) {
-    System.out.println("RESTRICTION: " + message);
+  public static String restriction(String message) {
+    return "RESTRICTION: " + message;
   }
 }
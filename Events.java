@@ -0,0 +1,107 @@
+/*
+ * Events.java
+ */
+
+// The events recorded for JDK Flight Recorder, so that the time spent
+// in the compiler can be told apart by phase, by file and by function:
+//
+//   java -XX:StartFlightRecording=filename=vc.jfr VC.vc -O gcd.vc
+//   jfr print --categories VC vc.jfr
+//
+//   VC.Scan       the scan of a file on its own, with its tokens
+//                 (disabled by default, as the Parser does the scan
+//                 as it goes and this scans the file once more; enable
+//                 it with VC.Scan#enabled=true)
+//   VC.Parse      the scan and parse of a file, with its AST nodes
+//   VC.Check      the Checker on a file, with its AST nodes
+//   VC.Generate   the Emitter on a file, with the instructions written
+//   VC.Function   the Emitter on a function, with its AST nodes and
+//                 the instructions generated for it before they are
+//                 optimised
+//
+// (The Checker checks a file as a whole, so there is no event for the
+// check of a function.) The nodes are only counted when an event is
+// recorded, and an event that is not recorded costs next to nothing.
+
+package VC;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public final class Events {
+
+  private Events() {
+  }
+
+  @Name("VC.Scan")
+  @Label("Scan")
+  @Category("VC")
+  @Description("The scan of a file on its own")
+  @Enabled(false)
+  public static final class Scan extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Tokens")
+    public int tokens;
+  }
+
+  @Name("VC.Parse")
+  @Label("Parse")
+  @Category("VC")
+  @Description("The scan and parse of a file")
+  public static final class Parse extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("AST Nodes")
+    public int nodes;
+  }
+
+  @Name("VC.Check")
+  @Label("Check")
+  @Category("VC")
+  @Description("The semantic analysis of a file")
+  public static final class Check extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("AST Nodes")
+    public int nodes;
+  }
+
+  @Name("VC.Generate")
+  @Label("Generate")
+  @Category("VC")
+  @Description("The code generation of a file")
+  public static final class Generate extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Instructions")
+    public long instructions;
+  }
+
+  @Name("VC.Function")
+  @Label("Function")
+  @Category("VC")
+  @Description("The code generation of a function")
+  public static final class Function extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Function")
+    public String function;
+
+    @Label("AST Nodes")
+    public int nodes;
+
+    @Label("Instructions")
+    public int instructions;
+  }
+
+}
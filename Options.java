@@ -0,0 +1,169 @@
+/*
+ * Options.java
+ */
+
+// The options of a compilation, as given on the command line (see
+// vc.cmdLineOptions) or in a request to the compile server (see
+// Server.java). parse reports an invalid option by throwing an
+// IllegalArgumentException rather than by exiting, so that the server
+// can reject a request and carry on.
+
+package VC;
+
+import VC.CodeGen.Peephole;
+
+final class Options {
+
+  int drawingAST = 0;
+  boolean printingAST = false;
+  boolean unparsingAST = false;
+  boolean optimising = false;
+  boolean peephole = false;
+  String peepholeRules = null;
+  boolean reportingPeephole = false;
+  boolean rotatingLoops = false;
+  boolean staticMethods = false;
+  boolean writingJasmin = false;
+  int parallelism = 1;
+  boolean streaming = false;
+  boolean running = false;
+  boolean stats = false;
+  boolean statsJson = false;
+  String[] programArgs = new String[0];
+  int batchThreads = 0;
+  String astFilename = "";
+  String unparsingFilename = "";
+
+  // The build cache (see BuildCache.java), made by the caller of parse
+  String cacheDir = null;
+  int cacheSize = BuildCache.DEFAULT_SIZE;
+  BuildCache cache = null;
+
+  // The options of the compile server
+  boolean server = false;
+  int serverPort = Server.DEFAULT_PORT;
+  int serverThreads = Runtime.getRuntime().availableProcessors();
+  int serverQueue = 16;
+  int idleSeconds = 0;
+
+  // Parses the options in args from args[i] on and returns the index
+  // of the first argument that is not an option
+
+  int parse(String[] args, int i) {
+    String arg;
+
+    while (i < args.length && args[i].startsWith("-")) {
+      arg = args[i++];
+      
+      if (arg.startsWith("-d") && !arg.equals("-d")) {
+        int n = 0;
+        try {
+          n = Integer.parseInt(arg.substring(2));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("invalid option " + arg);
+        }
+        if (1 <= n && n <= 4) 
+          drawingAST = n;
+        else {
+          throw new IllegalArgumentException("invalid option " + arg);
+        }
+      } else if (arg.equals("-d")) {
+        if (i < args.length) { 
+          if (args[i].equals("1")) {
+            drawingAST = 1;
+            i++;
+          } else if (args[i].equals("2")) {
+            drawingAST = 2;
+            i++;
+          } else if (args[i].equals("3")) {
+            drawingAST = 3;
+            i++;
+          } else if (args[i].equals("4")) {
+            drawingAST = 4;
+            i++;
+          } else {
+            throw new IllegalArgumentException("invalid option -d " + args[i]);
+          }
+        }
+      } else if (arg.startsWith("-t")) {
+        printingAST = true;
+        if (! arg.equals("-t")) 
+            astFilename = arg.substring(2);
+        else if (i < args.length && !args[i].startsWith("-"))
+            astFilename = args[i++];
+        // the default is inputFilename + "p"
+      } else if (arg.startsWith("-u")) {
+        unparsingAST = true;
+        if (! arg.equals("-u")) 
+            astFilename = arg.substring(2);
+        if (i < args.length && !args[i].startsWith("-"))
+          unparsingFilename = args[i++];
+        // the default is inputFilename + "u"
+      } else if (arg.equals("-O")) {
+        optimising = true;
+      } else if (arg.startsWith("-p")) {
+        peephole = true;
+        if (! arg.equals("-p")) {
+          peepholeRules = arg.substring(2);
+          if (! new Peephole().enable(peepholeRules)) {
+            throw new IllegalArgumentException("invalid option " + arg);
+          }
+        }
+      } else if (arg.equals("-P")) {
+        reportingPeephole = true;
+      } else if (arg.equals("-l")) {
+        rotatingLoops = true;
+      } else if (arg.equals("-s")) {
+        staticMethods = true;
+      } else if (arg.equals("-j")) {
+        writingJasmin = true;
+      } else if (arg.equals("-run")) {
+        running = true;
+      } else if (arg.equals("-stats")) {
+        stats = true;
+      } else if (arg.equals("-stats=json")) {
+        stats = true;
+        statsJson = true;
+      } else if (arg.equals("-stream")) {
+        streaming = true;
+      } else if (arg.startsWith("-c")) {
+        parallelism = count(arg, 2, Runtime.getRuntime().availableProcessors());
+      } else if (arg.startsWith("-b")) {
+        batchThreads = count(arg, 2, Runtime.getRuntime().availableProcessors());
+      } else if (arg.equals("--server") || arg.startsWith("--server=")) {
+        server = true;
+        serverPort = count(arg, 8, Server.DEFAULT_PORT);
+      } else if (arg.startsWith("--cache-size=")) {
+        cacheSize = count(arg, 12, 0);
+      } else if (arg.equals("--cache") || arg.startsWith("--cache=")) {
+        cacheDir = arg.length() > 8 ? arg.substring(8) : BuildCache.DEFAULT_DIR;
+      } else if (arg.startsWith("--threads=")) {
+        serverThreads = count(arg, 9, 0);
+      } else if (arg.startsWith("--queue=")) {
+        serverQueue = count(arg, 7, 0);
+      } else if (arg.startsWith("--idle=")) {
+        idleSeconds = count(arg, 6, 0);
+      } else {
+        throw new IllegalArgumentException("invalid option " + arg);
+      }
+    }
+    return i;
+  }
+
+  // The number after the first k characters of an option such as -c[n]
+  // or --idle=n, or the default if it is left out
+
+  private static int count(String arg, int k, int defaultCount) {
+    if (arg.length() == k)
+      return defaultCount;
+    int n = 0;
+    try {
+      n = Integer.parseInt(arg.substring(arg.charAt(k) == '=' ? k + 1 : k));
+    } catch (NumberFormatException e) {
+    }
+    if (n < 1)
+      throw new IllegalArgumentException("invalid option " + arg);
+    return n;
+  }
+
+}
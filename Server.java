@@ -0,0 +1,403 @@
+/*
+ * Server.java
+ */
+
+// A compile server, which stays up and compiles the files sent to it,
+// so that a compilation does not pay for starting a JVM and for loading
+// and warming up the compiler every time:
+//
+//   java VC.vc --server[=port] [--threads=n] [--queue=n] [--idle=seconds]
+//
+// The server listens on localhost:port (4161 by default), which any
+// user of the machine can connect to. So that only the user who has
+// started the server can use it, the server makes up a random token
+// and writes it to ~/.vc-server-<port> (e.g. ~/.vc-server-4161), which
+// only that user can read. A client opens a connection, sends the token in a line of its own, one
+// request in lines of UTF-8 text and reads the reply until the server
+// closes the connection. A request is one of
+//
+//   compile [-options] files    compile the files (given relative to
+//                               the directory of the server)
+//   source name.vc [-options]   compile the program in the lines that
+//   ...                         follow, up to a line with a single ".",
+//   .                           which are stored in name.vc in the
+//                               directory of the server (a line of the
+//                               program that starts with "." is sent
+//                               with one more "." in front of it)
+//   stop                        stop the server
+//
+// with the options of the command line except -d, -run, -b and the
+// options of the server. The files of a request, including those of
+// -t, -u and --cache, must be relative paths without "..", so that a
+// request cannot read or write files outside the directory of the
+// server. The reply has, for every file, a line
+// "[# vc #]: file", what the compiler prints and, if the file has been
+// compiled successfully, a line "output path" with the absolute path
+// of its class file (or .j file). The last line is "ok", or "failed"
+// if any file has not been compiled. With --cache, the line before it
+// has the hits and misses of the build cache (see BuildCache.java).
+//
+// Up to n requests (one per processor by default) are compiled at the
+// same time, each with its own ErrorReporter, Scanner, Parser, Checker
+// and Emitter as in Batch.java, and up to --queue of them (16 by
+// default) wait for a thread. Any other request is turned down with
+// "[# vc #]: the server is busy" and "failed". With --idle, the server
+// stops when there has been no request for the given number of
+// seconds.
+
+package VC;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Server {
+
+  static final int DEFAULT_PORT = 4161;
+
+  // the time a client has to send its request, in milliseconds
+  private static final int REQUEST_TIMEOUT = 60000;
+
+  private final Options options;
+  private final ServerSocket socket;
+  private final ThreadPoolExecutor pool;
+  private final ThreadOutput output;
+
+  // the token that a request must start with
+  private final byte[] token;
+
+  // the number of requests accepted and not yet answered, and the time
+  // when the last of them was answered
+  private final AtomicInteger active = new AtomicInteger();
+  private volatile long idleSince = System.currentTimeMillis();
+
+  private volatile boolean stopping = false;
+
+  // the names of the sources being compiled, so that two requests do
+  // not write into the same file
+  private final ConcurrentHashMap<String, Boolean> sources = new ConcurrentHashMap<String, Boolean>();
+
+  private Server(Options options, ServerSocket socket, ThreadOutput output, String token) {
+    this.options = options;
+    this.socket = socket;
+    this.output = output;
+    this.token = token.getBytes(StandardCharsets.UTF_8);
+    pool = new ThreadPoolExecutor(options.serverThreads, options.serverThreads, 0, TimeUnit.SECONDS,
+                                  new ArrayBlockingQueue<Runnable>(options.serverQueue));
+  }
+
+  // Runs the server with the options until it is stopped (or has been
+  // idle for too long) and returns false if it cannot be started
+
+  static boolean serve(Options options) {
+    ServerSocket socket;
+    try {
+      socket = new ServerSocket(options.serverPort, 50, InetAddress.getLoopbackAddress());
+    } catch (IOException e) {
+      System.out.println("[# vc #]: can't listen on port " + options.serverPort + ": " + e.getMessage());
+      return false;
+    }
+
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    StringBuilder token = new StringBuilder();
+    for (byte b : random)
+      token.append(String.format("%02x", b & 0xff));
+    File tokenFile = new File(System.getProperty("user.home"), ".vc-server-" + socket.getLocalPort());
+    try {
+      writeToken(tokenFile.toPath(), token.toString());
+    } catch (IOException e) {
+      System.out.println("[# vc #]: can't write " + tokenFile + ": " + e);
+      try {
+        socket.close();
+      } catch (IOException e2) {
+      }
+      return false;
+    }
+
+    PrintStream console = System.out;
+    ThreadOutput output = new ThreadOutput(console);
+    System.setOut(new PrintStream(output, true));
+    try {
+      console.println("[# vc #]: listening on localhost:" + socket.getLocalPort()
+                      + " with the token in " + tokenFile);
+      new Server(options, socket, output, token.toString()).run();
+      console.println("[# vc #]: server stopped");
+    } finally {
+      System.setOut(console);
+      tokenFile.delete();
+    }
+    return true;
+  }
+
+  // Writes the token to a new file that only the user can read, in
+  // place of any file left by an earlier server
+
+  private static void writeToken(Path path, String token) throws IOException {
+    Files.deleteIfExists(path);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+      Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    else {
+      File file = Files.createFile(path).toFile();
+      file.setReadable(false, false);
+      file.setReadable(true, true);
+    }
+    Files.write(path, (token + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void run() {
+    try {
+      long idle = options.idleSeconds * 1000L;
+      while (! stopping) {
+        final Socket client;
+        try {
+          // wait for a request until the server has been idle too long
+          if (idle > 0)
+            socket.setSoTimeout((int) Math.max(1, idle - (System.currentTimeMillis() - idleSince)));
+          client = socket.accept();
+        } catch (SocketTimeoutException e) {
+          if (active.get() == 0 && System.currentTimeMillis() - idleSince >= idle)
+            break;
+          continue;
+        } catch (SocketException e) {
+          // the socket has been closed by a stop request
+          break;
+        }
+        active.incrementAndGet();
+        try {
+          pool.execute(new Runnable() {
+            public void run() {
+              answer(client);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          reply(client, "[# vc #]: the server is busy\nfailed\n");
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("[# vc #]: " + e);
+    } finally {
+      close();
+      pool.shutdown();
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  private void close() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+    }
+  }
+
+  // Sends the reply to a request that is not compiled and closes the
+  // connection
+
+  private void reply(Socket client, String reply) {
+    try {
+      client.getOutputStream().write(reply.getBytes(StandardCharsets.UTF_8));
+      client.close();
+    } catch (IOException e) {
+    } finally {
+      done();
+    }
+  }
+
+  private void done() {
+    idleSince = System.currentTimeMillis();
+    active.decrementAndGet();
+  }
+
+  // Reads a request from the client and answers it. What the thread
+  // prints while compiling goes to the client.
+
+  private void answer(Socket client) {
+    try {
+      client.setSoTimeout(REQUEST_TIMEOUT);
+      BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                                                                   StandardCharsets.UTF_8));
+      OutputStream out = new BufferedOutputStream(client.getOutputStream());
+      output.set(out);
+      try {
+        boolean ok;
+        try {
+          ok = answer(in);
+        } catch (RuntimeException e) {
+          System.out.println("[# vc #]: " + e);
+          ok = false;
+        }
+        System.out.println(ok ? "ok" : "failed");
+        System.out.flush();
+      } finally {
+        output.set(null);
+      }
+      client.close();
+    } catch (IOException e) {
+      // the client has gone away
+      try {
+        client.close();
+      } catch (IOException e2) {
+      }
+    } finally {
+      done();
+    }
+  }
+
+  private boolean answer(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    if (line == null || ! MessageDigest.isEqual(line.trim().getBytes(StandardCharsets.UTF_8), token)) {
+      System.out.println("[# vc #]: invalid token");
+      return false;
+    }
+    line = in.readLine();
+    String[] words = line == null ? new String[0] : line.trim().split("\\s+");
+    String request = words.length == 0 ? "" : words[0];
+
+    if (request.equals("stop") && words.length == 1) {
+      stopping = true;
+      close();
+      return true;
+    }
+
+    Options options = new Options();
+    int i;
+    if (request.equals("compile")) {
+      i = parse(options, words, 1);
+      if (i < 0)
+        return false;
+      if (i == words.length) {
+        System.out.println("[# vc #]: no input file");
+        return false;
+      }
+      for (int j = i; j < words.length; j++)
+        if (! isLocal(words[j])) {
+          System.out.println("[# vc #]: invalid file " + words[j]);
+          return false;
+        }
+      boolean ok = true;
+      for (; i < words.length; i++)
+        if (! compile(words[i], options))
+          ok = false;
+      if (options.cache != null)
+        options.cache.close();
+      return ok;
+    } else if (request.equals("source") && words.length >= 2) {
+      String name = words[1];
+      if (! name.endsWith(".vc") || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+        System.out.println("[# vc #]: invalid source name " + name);
+        return false;
+      }
+      i = parse(options, words, 2);
+      if (i < 0)
+        return false;
+      if (i < words.length) {
+        System.out.println("[# vc #]: invalid option " + words[i]);
+        return false;
+      }
+      if (sources.putIfAbsent(name, Boolean.TRUE) != null) {
+        System.out.println("[# vc #]: " + name + " is being compiled for another request");
+        return false;
+      }
+      try {
+        PrintWriter source = new PrintWriter(new FileWriter(name));
+        try {
+          while ((line = in.readLine()) != null && ! line.equals("."))
+            source.println(line.startsWith(".") ? line.substring(1) : line);
+        } finally {
+          source.close();
+        }
+        if (line == null) {
+          System.out.println("[# vc #]: the source has no end");
+          return false;
+        }
+        boolean ok = compile(name, options);
+        if (options.cache != null)
+          options.cache.close();
+        return ok;
+      } finally {
+        sources.remove(name);
+      }
+    } else {
+      System.out.println("[# vc #]: invalid request " + (line == null ? "" : line));
+      return false;
+    }
+  }
+
+  // Parses the options of a request from words[i] on and returns the
+  // index of the first word that is not an option, or -1 if an option
+  // is invalid or cannot be used in a request
+
+  private static int parse(Options options, String[] words, int i) {
+    try {
+      i = options.parse(words, i);
+    } catch (IllegalArgumentException e) {
+      System.out.println("[# vc #]: " + e.getMessage());
+      return -1;
+    }
+    if (options.drawingAST > 0 || options.running || options.batchThreads > 0 || options.server) {
+      System.out.println("[# vc #]: -d, -run, -b and the server options cannot be used in a request");
+      return -1;
+    }
+    String[] files = { options.astFilename, options.unparsingFilename, options.cacheDir };
+    for (String file : files)
+      if (file != null && ! file.equals("") && ! isLocal(file)) {
+        System.out.println("[# vc #]: invalid file " + file);
+        return -1;
+      }
+    if (options.cacheDir != null)
+      options.cache = new BuildCache(options.cacheDir, options.cacheSize);
+    return i;
+  }
+
+  // Whether the path is relative and has no "..", so that it names a
+  // file in the directory of the server or below it
+
+  private static boolean isLocal(String path) {
+    if (new File(path).isAbsolute() || path.startsWith("/") || path.startsWith(File.separator))
+      return false;
+    for (String name : path.split("[/\\\\]"))
+      if (name.equals(".."))
+        return false;
+    return true;
+  }
+
+  private static boolean compile(String file, Options options) {
+    if (! new File(file).canRead()) {
+      System.out.println("[# vc #]: can't read: " + file);
+      return false;
+    }
+    System.out.println("[# vc #]: " + file);
+    if (! vc.compile(file, options))
+      return false;
+    System.out.println("output " + new File(vc.outputFilename(file, options)).getAbsolutePath());
+    return true;
+  }
+
+}
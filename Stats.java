@@ -0,0 +1,230 @@
+/*
+ * Stats.java
+ */
+
+// The statistics of a compilation, printed with -stats (or as one line
+// of JSON with -stats=json):
+//
+//   for every phase   the wall time, the CPU time and the bytes
+//                     allocated by the thread that compiles the file
+//                     (see ThreadMXBean; the threads of -c are not
+//                     counted)
+//   tokens            the number of tokens
+//   AST nodes         the number of nodes of the AST from the parser,
+//                     by class (see ASTNodes)
+//   identifiers       the number of applied occurrences of identifiers
+//   resolved          resolved by the Checker (each is a lookup in the
+//                     symbol table)
+//   instructions      the number of instructions written
+//   output            the size of the class file or .j file
+//
+// The Parser takes the tokens from the Scanner as it goes, so the
+// tokens are counted (and the scan phase is timed) by scanning the
+// file once more on its own before it is parsed.
+
+package VC;
+
+import VC.ASTs.AST;
+import VC.ASTs.Ident;
+import VC.CodeGen.ASTNodes;
+import VC.Scanner.Scanner;
+import VC.Scanner.SourceFile;
+import VC.Scanner.SourcePosition;
+import VC.Scanner.Token;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class Stats {
+
+  private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  private final String filename;
+
+  // the wall time, the CPU time (in nanoseconds) and the bytes
+  // allocated in every phase
+  private final LinkedHashMap<String, long[]> phases = new LinkedHashMap<String, long[]>();
+  private String phase;
+  private long wall, cpu, allocated;
+
+  private int tokens = 0;
+  private final HashMap<String, Integer> nodes = new HashMap<String, Integer>();
+  private int nodeCount = 0;
+  private int identifiers = 0;
+  private long instructions = -1;
+  private long outputSize = -1;
+
+  Stats(String filename) {
+    this.filename = filename;
+  }
+
+  void start(String phase) {
+    this.phase = phase;
+    wall = System.nanoTime();
+    cpu = cpuTime();
+    allocated = allocatedBytes();
+  }
+
+  void stop() {
+    long cpu = cpuTime(), allocated = allocatedBytes();
+    phases.put(phase, new long[] {
+      System.nanoTime() - wall,
+      cpu < 0 ? -1 : cpu - this.cpu,
+      allocated < 0 ? -1 : allocated - this.allocated
+    });
+  }
+
+  private static long cpuTime() {
+    return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+  }
+
+  private static long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+      if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled())
+        return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  // Scans the file on its own (as the scan phase) to count its tokens
+
+  void scan() {
+    start("scan");
+    tokens = countTokens(filename);
+    stop();
+  }
+
+  // the number of tokens in a file (whose lexical errors are not
+  // reported)
+
+  static int countTokens(String filename) {
+    ErrorReporter quiet = new ErrorReporter() {
+      public void reportError(String message, String tokenName, SourcePosition pos) {
+        numErrors++;
+      }
+    };
+    Scanner scanner = new Scanner(new SourceFile(filename), quiet);
+    int tokens = 0;
+    while (scanner.getToken().kind != Token.EOF)
+      tokens++;
+    return tokens;
+  }
+
+  // Counts the nodes of the AST from the parser
+
+  void countNodes(AST ast) {
+    nodeCount = ASTNodes.count(ast, nodes);
+  }
+
+  // Counts the identifiers resolved by the Checker
+
+  void countIdentifiers(AST ast) {
+    ArrayDeque<AST> work = new ArrayDeque<AST>();
+    work.push(ast);
+    while (! work.isEmpty()) {
+      AST node = work.pop();
+      if (node instanceof Ident && ((Ident) node).decl != null)
+        identifiers++;
+      for (AST child : ASTNodes.children(node))
+        work.push(child);
+    }
+  }
+
+  void setInstructions(long instructions) {
+    this.instructions = instructions;
+  }
+
+  void setOutputSize(long outputSize) {
+    this.outputSize = outputSize;
+  }
+
+  // the node counts by class, the largest first
+
+  private ArrayList<Map.Entry<String, Integer>> nodesByCount() {
+    ArrayList<Map.Entry<String, Integer>> list = new ArrayList<Map.Entry<String, Integer>>(nodes.entrySet());
+    Collections.sort(list, new Comparator<Map.Entry<String, Integer>>() {
+      public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+        int c = b.getValue().compareTo(a.getValue());
+        return c != 0 ? c : a.getKey().compareTo(b.getKey());
+      }
+    });
+    return list;
+  }
+
+  void print(boolean json) {
+    if (json)
+      System.out.println(toJson());
+    else
+      printText();
+  }
+
+  private void printText() {
+    System.out.println("[# vc #]: statistics of " + filename);
+    System.out.println(String.format("  %-10s %12s %12s %16s", "phase", "wall (ms)", "CPU (ms)", "allocated (KB)"));
+    for (Map.Entry<String, long[]> e : phases.entrySet()) {
+      long[] p = e.getValue();
+      System.out.println(String.format("  %-10s %12.3f %12s %16s", e.getKey(), p[0] / 1e6,
+                                       p[1] < 0 ? "-" : String.format("%.3f", p[1] / 1e6),
+                                       p[2] < 0 ? "-" : Long.toString(p[2] / 1024)));
+    }
+    System.out.println("  (the scan phase is a separate scan of the file; the parse phase");
+    System.out.println("  scans the file as well)");
+    System.out.println("  tokens:               " + tokens);
+    System.out.println("  AST nodes:            " + nodeCount);
+    for (Map.Entry<String, Integer> e : nodesByCount())
+      System.out.println(String.format("    %-20s %8d", e.getKey(), e.getValue()));
+    System.out.println("  identifiers resolved: " + identifiers);
+    if (instructions >= 0)
+      System.out.println("  instructions:         " + instructions);
+    if (outputSize >= 0)
+      System.out.println("  output (bytes):       " + outputSize);
+  }
+
+  private String toJson() {
+    StringBuilder s = new StringBuilder();
+    s.append("{\"file\":").append(quote(filename)).append(",\"phases\":{");
+    boolean first = true;
+    for (Map.Entry<String, long[]> e : phases.entrySet()) {
+      long[] p = e.getValue();
+      s.append(first ? "" : ",").append(quote(e.getKey()))
+        .append(":{\"wallNanos\":").append(p[0])
+        .append(",\"cpuNanos\":").append(p[1])
+        .append(",\"allocatedBytes\":").append(p[2]).append("}");
+      first = false;
+    }
+    s.append("},\"tokens\":").append(tokens);
+    s.append(",\"astNodes\":").append(nodeCount).append(",\"astNodesByClass\":{");
+    first = true;
+    for (Map.Entry<String, Integer> e : nodesByCount()) {
+      s.append(first ? "" : ",").append(quote(e.getKey())).append(":").append(e.getValue());
+      first = false;
+    }
+    s.append("},\"identifiersResolved\":").append(identifiers);
+    s.append(",\"instructions\":").append(instructions);
+    s.append(",\"outputBytes\":").append(outputSize).append("}");
+    return s.toString();
+  }
+
+  static String quote(String s) {
+    StringBuilder q = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        q.append('\\').append(c);
+      else if (c < 0x20)
+        q.append(String.format("\\u%04x", (int) c));
+      else
+        q.append(c);
+    }
+    return q.append('"').toString();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * ThreadOutput.java
+ */
+
+// System.out while files are compiled at the same time (see Batch.java
+// and Server.java): what a thread prints goes into the stream set for
+// it, and what any other thread prints to the console.
+
+package VC;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+final class ThreadOutput extends OutputStream {
+
+  private final PrintStream console;
+  private final ThreadLocal<OutputStream> streams = new ThreadLocal<OutputStream>();
+
+  ThreadOutput(PrintStream console) {
+    this.console = console;
+  }
+
+  // Sends what the current thread prints into out (or to the console
+  // again if out is null)
+
+  void set(OutputStream out) {
+    if (out == null)
+      streams.remove();
+    else
+      streams.set(out);
+  }
+
+  private OutputStream out() {
+    OutputStream out = streams.get();
+    return out != null ? out : console;
+  }
+
+  public void write(int b) throws IOException {
+    out().write(b);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    out().write(b, off, len);
+  }
+
+  public void flush() throws IOException {
+    out().flush();
+  }
+
+}
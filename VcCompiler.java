@@ -0,0 +1,266 @@
+/*
+ * VcCompiler.java
+ */
+
+// The compiler as a library, for programs that compile VC programs
+// without starting the compiler as a process of its own:
+//
+//   VcCompiler compiler = new VcCompiler();
+//   VcCompiler.Options options = new VcCompiler.Options();
+//   options.setClassname("gcd");
+//   options.setOptimising(true);
+//   VcCompiler.Result result = compiler.compile(source, options);
+//   if (result.succeeded())
+//     ... result.getClassBytes() ...
+//   else
+//     ... result.getDiagnostics() ...
+//
+// A compilation prints nothing and never exits: the errors that vc
+// prints (and the fatal errors of the code generator, see
+// CodeGenException) are returned as diagnostics, and the class file is
+// returned rather than written. Every compilation has its own
+// ErrorReporter, Scanner, Parser, Checker and Emitter, and a VcCompiler
+// has no state of its own, so one VcCompiler can be used by any number
+// of threads at the same time. (The Checker keeps the standard
+// environment in the static fields of StdEnvironment, so checking, and
+// only checking, is done by one thread at a time.)
+//
+// The Scanner reads its source through a SourceFile, which reads a
+// file, so the source is written into a temporary file that is deleted
+// when the compilation is over.
+
+package VC;
+
+import VC.Scanner.Scanner;
+import VC.Scanner.SourceFile;
+import VC.Scanner.SourcePosition;
+import VC.Parser.Parser;
+import VC.ASTs.AST;
+import VC.Checker.Checker;
+import VC.CodeGen.ASTNodes;
+import VC.CodeGen.CodeGenException;
+import VC.CodeGen.Emitter;
+import VC.CodeGen.Peephole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class VcCompiler {
+
+  // The options of a compilation (as the options -O, -p, -l, -s and
+  // -c of vc)
+
+  public static final class Options {
+
+    private String classname = "Main";
+    private boolean optimising = false;
+    private boolean peephole = false;
+    private String peepholeRules = null;
+    private boolean rotatingLoops = false;
+    private boolean staticMethods = false;
+    private int parallelism = 1;
+
+    // the name of the class generated (Main by default)
+
+    public void setClassname(String classname) {
+      this.classname = classname;
+    }
+
+    public void setOptimising(boolean optimising) {
+      this.optimising = optimising;
+    }
+
+    // Runs the peephole optimiser with the given comma-separated rules
+    // (or all of them if rules is null)
+
+    public void setPeephole(String rules) {
+      if (rules != null && ! new Peephole().enable(rules))
+        throw new IllegalArgumentException("invalid peephole rules " + rules);
+      peephole = true;
+      peepholeRules = rules;
+    }
+
+    public void setRotatingLoops(boolean rotatingLoops) {
+      this.rotatingLoops = rotatingLoops;
+    }
+
+    public void setStaticMethods(boolean staticMethods) {
+      this.staticMethods = staticMethods;
+    }
+
+    public void setParallelism(int parallelism) {
+      if (parallelism < 1)
+        throw new IllegalArgumentException("invalid parallelism " + parallelism);
+      this.parallelism = parallelism;
+    }
+  }
+
+  // The result of a compilation: the class file if the program has
+  // been compiled successfully, the diagnostics in the order in which
+  // they have been found, and the time of every pass that has been run
+  // ("parse", "check" and "generate"), in nanoseconds
+
+  public static final class Result {
+
+    private final String classname;
+    private final byte[] classBytes;
+    private final List<String> diagnostics;
+    private final Map<String, Long> timings;
+
+    private Result(String classname, byte[] classBytes, List<String> diagnostics,
+                   Map<String, Long> timings) {
+      this.classname = classname;
+      this.classBytes = classBytes;
+      this.diagnostics = Collections.unmodifiableList(diagnostics);
+      this.timings = Collections.unmodifiableMap(timings);
+    }
+
+    public boolean succeeded() {
+      return classBytes != null;
+    }
+
+    public String getClassname() {
+      return classname;
+    }
+
+    // the class file, or null if the program has not been compiled
+
+    public byte[] getClassBytes() {
+      return classBytes;
+    }
+
+    public List<String> getDiagnostics() {
+      return diagnostics;
+    }
+
+    public Map<String, Long> getTimings() {
+      return timings;
+    }
+  }
+
+  // An ErrorReporter that keeps the errors instead of printing them
+
+  private static final class Diagnostics extends ErrorReporter {
+
+    final ArrayList<String> messages = new ArrayList<String>();
+
+    public void reportError(String message, String tokenName, SourcePosition pos) {
+      messages.add(error(message, tokenName, pos));
+      numErrors++;
+    }
+
+    public void reportRestriction(String message) {
+      messages.add(restriction(message));
+    }
+
+    void fatal(String message) {
+      messages.add(message);
+      numErrors++;
+    }
+  }
+
+  public Result compile(CharSequence source, Options options) {
+    Diagnostics reporter = new Diagnostics();
+    LinkedHashMap<String, Long> timings = new LinkedHashMap<String, Long>();
+    byte[] classFile = null;
+    File file = null;
+
+    try {
+      long start = System.nanoTime();
+      file = File.createTempFile("vcsource", ".vc");
+      // SourceFile reads the file in the default charset
+      Files.write(file.toPath(), source.toString().getBytes(Charset.defaultCharset()));
+
+      // the events of JDK Flight Recorder (see Events.java)
+      String name = options.classname + ".vc";
+      Events.Scan scanEvent = new Events.Scan();
+      if (scanEvent.isEnabled()) {
+        scanEvent.begin();
+        scanEvent.file = name;
+        scanEvent.tokens = Stats.countTokens(file.getPath());
+        scanEvent.commit();
+      }
+
+      Events.Parse parseEvent = new Events.Parse();
+      parseEvent.begin();
+      Scanner scanner = new Scanner(new SourceFile(file.getPath()), reporter);
+      Parser parser = new Parser(scanner, reporter);
+      AST theAST = parser.parseProgram();
+      timings.put("parse", System.nanoTime() - start);
+      parseEvent.end();
+      if (parseEvent.shouldCommit()) {
+        parseEvent.file = name;
+        parseEvent.nodes = ASTNodes.count(theAST, null);
+        parseEvent.commit();
+      }
+
+      if (reporter.numErrors == 0) {
+        start = System.nanoTime();
+        Events.Check checkEvent = new Events.Check();
+        checkEvent.begin();
+        synchronized (StdEnvironment.class) {
+          Checker checker = new Checker(reporter);
+          checker.check(theAST);
+        }
+        timings.put("check", System.nanoTime() - start);
+        checkEvent.end();
+        if (checkEvent.shouldCommit()) {
+          checkEvent.file = name;
+          checkEvent.nodes = ASTNodes.count(theAST, null);
+          checkEvent.commit();
+        }
+      }
+
+      if (reporter.numErrors == 0) {
+        start = System.nanoTime();
+        Events.Generate generateEvent = new Events.Generate();
+        generateEvent.begin();
+        Emitter emitter = new Emitter(name, reporter);
+        emitter.setOptimising(options.optimising);
+        Peephole peephole = null;
+        if (options.peephole || options.optimising) {
+          peephole = new Peephole();
+          if (options.peepholeRules != null)
+            peephole.enable(options.peepholeRules);
+        }
+        emitter.setPeephole(peephole);
+        emitter.setRotatingLoops(options.rotatingLoops || options.optimising);
+        emitter.setStaticMethods(options.staticMethods || options.optimising);
+        emitter.setParallelism(options.parallelism);
+        emitter.setKeepingClassFile(true);
+        emitter.gen(theAST);
+        classFile = emitter.getClassFile();
+        timings.put("generate", System.nanoTime() - start);
+        generateEvent.end();
+        if (generateEvent.shouldCommit()) {
+          generateEvent.file = name;
+          generateEvent.instructions = emitter.getInstructionCount();
+          generateEvent.commit();
+        }
+      }
+    } catch (IOException e) {
+      reporter.fatal("can't write the source into a temporary file: " + e);
+    } catch (CodeGenException e) {
+      reporter.fatal(e.getMessage());
+    } catch (RuntimeException e) {
+      reporter.fatal("internal error: " + e);
+    } catch (StackOverflowError e) {
+      reporter.fatal("internal error: the program is nested too deeply");
+    } finally {
+      if (file != null)
+        file.delete();
+    }
+
+    if (reporter.numErrors > 0)
+      classFile = null;
+    return new Result(options.classname, classFile, reporter.messages, timings);
+  }
+
+}
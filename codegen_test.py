@@ -0,0 +1,51 @@
+# -*- coding: utf-8 -*-
+#
+# Compiles and runs every program CodeGen/x.vc with -run and each of
+# the options below, and compares what it prints after "Compilation was
+# successful." with CodeGen/x.sol. The input of a program, if it reads
+# any, is in CodeGen/x.in.
+#
+# Run it in VC/ after compiling vc.java (or with `make test`).
+import os
+import sys
+from subprocess import run, PIPE
+
+OPTIONS = [
+    [],
+    ['-O'],
+    ['-l'],
+    ['-s'],
+    ['-p'],
+    ['-c4'],
+    ['-stream'],
+    ['-O', '-l', '-s', '-p'],
+    ['-O', '-c4', '-stream'],
+]
+
+# the programs that recurse too deeply to run unless their tail calls
+# are turned into loops by -O
+OPTIMISED_ONLY = ['tail.vc']
+
+env = dict(os.environ)
+env.setdefault('CLASSPATH', '../')
+
+failed = 0
+for f in sorted(os.listdir('CodeGen')):
+    if not f.endswith('.vc'):
+        continue
+    base = 'CodeGen/' + f[:-3]
+    expected = open(base + '.sol').read()
+    stdin = open(base + '.in').read() if os.path.exists(base + '.in') else ''
+    for options in OPTIONS:
+        if f in OPTIMISED_ONLY and '-O' not in options:
+            continue
+        out = run(['java', 'VC.vc', '-run'] + options + [base + '.vc'], input=stdin,
+                  stdout=PIPE, stderr=PIPE, universal_newlines=True, env=env).stdout
+        got = out.split('Compilation was successful.\n', 1)[-1]
+        ok = got == expected
+        if not ok:
+            failed += 1
+        print(f, ' '.join(options), ok)
+
+print('%d failed' % failed)
+sys.exit(1 if failed else 0)
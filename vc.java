@@ -14,30 +14,22 @@ import VC.TreeDrawer.Drawer;
 import VC.TreePrinter.Printer;
 import VC.UnParser.UnParser;
 import VC.Checker.Checker;
+import VC.CodeGen.ASTNodes;
+import VC.CodeGen.CodeGenException;
 import VC.CodeGen.Emitter;
+import VC.CodeGen.Peephole;
+import VC.CodeGen.Runner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class vc {
 
-    private static Scanner scanner;
-    private static ErrorReporter reporter;
-    private static Parser parser;
-    private static Drawer drawer; 
-    private static Printer printer;
-    private static UnParser unparser;
-    private static Checker checker; 
-    private static Emitter emitter; 
-
-    private static int drawingAST = 0;
-    private static boolean printingAST = false;
-    private static boolean unparsingAST = false;
-    private static String inputFilename; 
-    private static String astFilename = ""; 
-    private static String unparsingFilename = ""; 
-
-    private static AST theAST;
- 
     private static void cmdLineOptions() {
-      System.out.println("\nUsage: java VC.vc [-options] filename");
+      System.out.println("\nUsage: java VC.vc [-options] filename [args]");
+      System.out.println("   or  java VC.vc -b[n] [-options] files");
+      System.out.println("   or  java VC.vc --server[=port] [--threads=n] [--queue=n] [--idle=seconds]");
       System.out.println();
       System.out.println("where options include:");
       System.out.println("	-d [1234]           display the AST (without SourcePosition)");
@@ -49,85 +41,140 @@ public class vc {
       System.out.println("	                    (or filename + \"t\" if <file> is unspecified)"); 
       System.out.println("	-u [file]  	    unparse the (non-annotated) AST into <file>");
       System.out.println("	                    (or filename + \"u\" if <file> is unspecified)"); 
+      System.out.println("	-O                  optimise the generated code");
+      System.out.println("	-p[rules]           run the peephole optimiser with the given");
+      System.out.println("	                    comma-separated rules (or all of them;");
+      System.out.println("	                    implied by -O)");
+      System.out.println("	-P                  print the number of peephole optimisations");
+      System.out.println("	-l                  test loop conditions at the bottom of loops");
+      System.out.println("	                    (implied by -O)");
+      System.out.println("	-s                  translate VC functions into static methods");
+      System.out.println("	                    (implied by -O)");
+      System.out.println("	-j                  write the Jasmin code into filename.j");
+      System.out.println("	                    (instead of the class file)");
+      System.out.println("	-c[n]               generate the methods of the functions on n");
+      System.out.println("	                    threads (or one per processor)");
+      System.out.println("	-stream             optimise and write out every method as soon");
+      System.out.println("	                    as it has been generated");
+      System.out.println("	-stats[=json]       print the time, CPU time and memory of every");
+      System.out.println("	                    phase and the sizes of the program (as JSON)");
+      System.out.println("	-run                run the compiled program in this JVM (with");
+      System.out.println("	                    the args), without writing the class file");
+      System.out.println("	-b[n]               compile the files (and the .vc files in the");
+      System.out.println("	                    directories) given on n threads (or one per");
+      System.out.println("	                    processor)");
+      System.out.println("	--cache[=dir]       take the files compiled before from the build");
+      System.out.println("	                    cache in dir (or .vccache; see BuildCache.java)");
+      System.out.println("	--cache-size=MB     keep the build cache within MB megabytes");
+      System.out.println("	--server[=port]     compile the files in the requests to a server");
+      System.out.println("	                    on localhost:port (see Server.java)");
+      System.out.println("	--threads=n         (with --server) compile n requests at a time");
+      System.out.println("	--queue=n           (with --server) keep up to n requests waiting");
+      System.out.println("	--idle=seconds      (with --server) stop after being idle so long");
       System.exit(1);
     }
 
     public static void main(String[] args) {
+        Options options = new Options();
         int i = 0;
-        String arg;
 
         System.out.println("======= The VC compiler =======\n");
 
-        while (i < args.length && args[i].startsWith("-")) {
-          arg = args[i++];
-          
-          if (arg.startsWith("-d") && !arg.equals("-d")) {
-            int n = 0;
-            try {
-              n = Integer.parseInt(arg.substring(2));
-            } catch (NumberFormatException e) {
-              System.out.println("[# vc #]: invalid option " + arg); 
-              cmdLineOptions();
-            }
-            if (1 <= n && n <= 4) 
-              drawingAST = n;
-            else {
-              System.out.println("[# vc #]: invalid option " + arg); 
-              cmdLineOptions();
-            }
-          } else if (arg.equals("-d")) {
-            if (i < args.length) { 
-              if (args[i].equals("1")) {
-                drawingAST = 1;
-                i++;
-              } else if (args[i].equals("2")) {
-                drawingAST = 2;
-                i++;
-              } else if (args[i].equals("3")) {
-                drawingAST = 3;
-                i++;
-              } else if (args[i].equals("4")) {
-                drawingAST = 4;
-                i++;
-              } else {
-                System.out.println("[# vc #]: invalid option -d " + args[i]); 
-                cmdLineOptions();
-              }
-            }
-          } else if (arg.startsWith("-t")) {
-            printingAST = true;
-            if (! arg.equals("-t")) 
-                astFilename = arg.substring(2);
-            else if (i < args.length && !args[i].startsWith("-"))
-                astFilename = args[i++];
-            // the default is inputFilename + "p"
-          } else if (arg.startsWith("-u")) {
-            unparsingAST = true;
-            if (! arg.equals("-u")) 
-                astFilename = arg.substring(2);
-            if (i < args.length && !args[i].startsWith("-"))
-              unparsingFilename = args[i++];
-            // the default is inputFilename + "u"
-          } else {
-            System.out.println("[# vc #]: invalid option " + arg); 
+        try {
+          i = options.parse(args, 0);
+        } catch (IllegalArgumentException e) {
+          System.out.println("[# vc #]: " + e.getMessage()); 
+          cmdLineOptions();
+        }
+        if (options.cacheDir != null && ! options.server)
+          options.cache = new BuildCache(options.cacheDir, options.cacheSize);
+        if (options.server) {
+          if (i < args.length) {
+            System.out.println("[# vc #]: --server takes no input files"); 
             cmdLineOptions();
           }
+          boolean ok = Server.serve(options);
+          System.exit(ok ? 0 : 1);
         }
         if (i == args.length) {
           System.out.println("[# vc #]: no input file"); 
           cmdLineOptions();
-        } else
-           inputFilename = args[i];
+        }
+        if (options.running && options.writingJasmin) {
+          System.out.println("[# vc #]: -run cannot be used with -j"); 
+          cmdLineOptions();
+        }
+
+        if (options.batchThreads > 0) {
+          if (options.running) {
+            System.out.println("[# vc #]: -run cannot be used with -b"); 
+            cmdLineOptions();
+          }
+          boolean ok = Batch.compile(Arrays.copyOfRange(args, i, args.length), options);
+          if (options.cache != null)
+            options.cache.close();
+          System.exit(ok ? 0 : 1);
+        }
+
+        options.programArgs = Arrays.copyOfRange(args, i + 1, args.length);
+        compile(args[i], options);
+        if (options.cache != null)
+          options.cache.close();
+    }
+
+    // Compiles (and with -run, runs) a file and returns true if it
+    // has been compiled successfully. Everything used by a compilation
+    // is created here, so that files can be compiled at the same time
+    // (see Batch.java and Server.java).
+
+    static boolean compile(String inputFilename, Options options) {
+        String key = null;
+        if (options.cache != null && BuildCache.caches(options)) {
+          key = options.cache.key(inputFilename, options);
+          if (key != null && options.cache.restore(key, outputFilenames(inputFilename, options))) {
+            System.out.println("[# vc #]: " + inputFilename + " restored from the build cache");
+            System.out.println ("Compilation was successful.");
+            return true;
+          }
+        }
+
+        Stats stats = null;
+        if (options.stats) {
+          stats = new Stats(inputFilename);
+          stats.scan();
+        }
+        Events.Scan scanEvent = new Events.Scan();
+        if (scanEvent.isEnabled()) {
+          scanEvent.begin();
+          scanEvent.file = inputFilename;
+          scanEvent.tokens = Stats.countTokens(inputFilename);
+          scanEvent.commit();
+        }
 
         SourceFile source = new SourceFile(inputFilename);
 
-        reporter = new ErrorReporter();
+        ErrorReporter reporter = new ErrorReporter();
+        Emitter emitter = null;
 
         System.out.println("Pass 1: Lexical and syntactic Analysis");
-        scanner  = new Scanner(source, reporter);
-        parser   = new Parser(scanner, reporter);
+        if (stats != null)
+          stats.start("parse");
+        Events.Parse parseEvent = new Events.Parse();
+        parseEvent.begin();
+        Scanner scanner  = new Scanner(source, reporter);
+        Parser parser   = new Parser(scanner, reporter);
 
-	theAST = parser.parseProgram();
+	AST theAST = parser.parseProgram();
+        parseEvent.end();
+        if (parseEvent.shouldCommit()) {
+          parseEvent.file = inputFilename;
+          parseEvent.nodes = ASTNodes.count(theAST, null);
+          parseEvent.commit();
+        }
+        if (stats != null) {
+          stats.stop();
+          stats.countNodes(theAST);
+        }
 
         if (reporter.numErrors == 0) {
           // We unparse and print the AST created by the parser. Both 
@@ -135,53 +182,152 @@ public class vc {
           // (Assignment 3).
           // We can also unparse and print the annotated AST from the 
           // checker but this is not as useful.
-          if (unparsingAST) {
+          if (options.unparsingAST) {
+            String unparsingFilename = options.unparsingFilename;
             if (unparsingFilename.equals(""))
               unparsingFilename = inputFilename + "u";
-   	    unparser = new UnParser(unparsingFilename);
+            new File(unparsingFilename).delete(); // may be linked into the build cache
+   	    UnParser unparser = new UnParser(unparsingFilename);
             unparser.unparse(theAST); 
             System.out.println("[# vc #]: The unparsed VC program printed to " + unparsingFilename);
           }
-          if (printingAST) {
+          if (options.printingAST) {
+            String astFilename = options.astFilename;
             if (astFilename.equals(""))
               astFilename = inputFilename + "p";
-   	    printer = new Printer(astFilename);
+            new File(astFilename).delete();
+   	    Printer printer = new Printer(astFilename);
             printer.print(theAST); 
             System.out.println("[# vc #]: The linearised AST printed to " + astFilename);
           }
-          if (1 <= drawingAST && drawingAST <= 2) {
- 	    drawer   = new Drawer();
-            if (drawingAST == 2)
+          if (1 <= options.drawingAST && options.drawingAST <= 2) {
+ 	    Drawer drawer   = new Drawer();
+            if (options.drawingAST == 2)
               drawer.enableDebugging(); // show SourcePosition
             drawer.draw(theAST); // draw the AST
           }
 
           System.out.println("Pass 2: Semantic Analysis");
-          checker  = new Checker(reporter);
-          checker.check(theAST);
+          // The Checker enters the standard environment into the
+          // static fields of StdEnvironment, so only one file is
+          // checked at a time.
+          if (stats != null)
+            stats.start("check");
+          Events.Check checkEvent = new Events.Check();
+          checkEvent.begin();
+          synchronized (StdEnvironment.class) {
+            Checker checker  = new Checker(reporter);
+            checker.check(theAST);
+          }
+          checkEvent.end();
+          if (checkEvent.shouldCommit()) {
+            checkEvent.file = inputFilename;
+            checkEvent.nodes = ASTNodes.count(theAST, null);
+            checkEvent.commit();
+          }
+          if (stats != null) {
+            stats.stop();
+            stats.countIdentifiers(theAST);
+          }
 
           if (reporter.numErrors == 0) {
             System.out.println("Pass 3: Code Generation");
             System.out.println();
             emitter = new Emitter(inputFilename, reporter);
-            emitter.gen(theAST);
+            emitter.setOptimising(options.optimising);
+            Peephole peephole = null;
+            if (options.peephole || options.optimising) {
+              peephole = new Peephole();
+              if (options.peepholeRules != null)
+                peephole.enable(options.peepholeRules);
+            }
+            emitter.setPeephole(peephole);
+            emitter.setRotatingLoops(options.rotatingLoops || options.optimising);
+            emitter.setStaticMethods(options.staticMethods || options.optimising);
+            emitter.setWritingJasmin(options.writingJasmin);
+            emitter.setParallelism(options.parallelism);
+            emitter.setStreaming(options.streaming);
+            emitter.setKeepingClassFile(options.running);
+            if (! options.running)
+              new File(outputFilename(inputFilename, options)).delete();
+            if (stats != null)
+              stats.start("generate");
+            Events.Generate generateEvent = new Events.Generate();
+            generateEvent.begin();
+            try {
+              emitter.gen(theAST);
+            } catch (CodeGenException e) {
+              System.out.println(e.getMessage());
+              reporter.numErrors++;
+            }
+            generateEvent.end();
+            if (generateEvent.shouldCommit()) {
+              generateEvent.file = inputFilename;
+              generateEvent.instructions = emitter.getInstructionCount();
+              generateEvent.commit();
+            }
+            if (stats != null) {
+              stats.stop();
+              stats.setInstructions(emitter.getInstructionCount());
+              if (reporter.numErrors == 0)
+                stats.setOutputSize(options.running ? emitter.getClassFile().length
+                                    : new File(outputFilename(inputFilename, options)).length());
+            }
+            if (options.reportingPeephole && peephole != null)
+              peephole.report();
             if (reporter.numErrors == 0) 
               System.out.println ("Compilation was successful.");
             else
               System.out.println ("Compilation was unsuccessful.");
           } else
             System.out.println ("Compilation was unsuccessful.");
+          if (stats != null)
+            stats.print(options.statsJson);
 
-          if (drawingAST >= 3) {
- 	    drawer   = new Drawer();
-            if (drawingAST == 4)
+          if (options.running) {
+            if (reporter.numErrors > 0)
+              System.exit(1);
+            int status = Runner.run(emitter.getClassname(), emitter.getClassFile(), options.programArgs);
+            if (status != 0)
+              System.exit(status);
+          }
+
+          if (options.drawingAST >= 3) {
+ 	    Drawer drawer   = new Drawer();
+            if (options.drawingAST == 4)
               drawer.enableDebugging(); // show SourcePosition
             drawer.draw(theAST); // draw the AST
           }
        }
-       else 
+       else {
          System.out.println ("Compilation was unsuccessful.");
+         if (stats != null)
+           stats.print(options.statsJson);
+         if (options.running)
+           System.exit(1);
+       }
+       if (key != null && reporter.numErrors == 0)
+         options.cache.store(key, outputFilenames(inputFilename, options));
+       return reporter.numErrors == 0;
     }
 
-}
+    // the name of the file written by the Emitter for the file
+    // inputFilename (see Emitter.gen)
+
+    static String outputFilename(String inputFilename, Options options) {
+      return Emitter.outputName(inputFilename) + (options.writingJasmin ? ".j" : ".class");
+    }
+
+    // the names of all the files written for the file inputFilename
 
+    private static String[] outputFilenames(String inputFilename, Options options) {
+      ArrayList<String> names = new ArrayList<String>();
+      names.add(outputFilename(inputFilename, options));
+      if (options.printingAST)
+        names.add(options.astFilename.equals("") ? inputFilename + "p" : options.astFilename);
+      if (options.unparsingAST)
+        names.add(options.unparsingFilename.equals("") ? inputFilename + "u" : options.unparsingFilename);
+      return names.toArray(new String[names.size()]);
+    }
+
+}